@@ -1,12 +1,24 @@
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 
 public class SRNode {
 
     public static void main(String[] args) {
         SRNode node;
 
+        // "bench" runs a sender and receiver in this process instead, see Benchmark
+        if (args.length > 0 && "bench".equals(args[0])) {
+            Benchmark.Main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         try {
             // get input arguments
             int sourcePort = Integer.parseInt(args[0]);
@@ -15,12 +27,16 @@ public class SRNode {
             int timeoutMs = Integer.parseInt(args[3]);
             double lossRate = Double.parseDouble(args[4]);
 
+            // any remaining arguments are optional flags
+            Options options = Options.Parse(args, 5);
+
             // make a node, which validates inputs, and kick off SR
-            node = new SRNode(sourcePort, destPort, windowSize, timeoutMs, lossRate);
+            node = new SRNode(sourcePort, destPort, windowSize, timeoutMs, lossRate, options);
         }
         catch (Exception e) {
             e.printStackTrace();
-            System.err.println("Usage: SRNode <source-port> <destination-port> <window-size> <time-out> <loss-rate>");
+            System.err.println("Usage: SRNode <source-port> <destination-port> <window-size> <time-out> <loss-rate> [cc] [sack] [delayack <delay-ms> <max-packets>] [fastrtx <k>] [fec <k>] [text] [log none|summary|all] [seed <n>] [burst <mean-length>]");
+            System.err.println("   or: SRNode bench " + Benchmark.USAGE);
             return;
         }
 
@@ -33,25 +49,41 @@ public class SRNode {
 
     // private fields used by Selective Repeat
     private int sourcePort;
-    private DatagramSocket socket;
     private int destPort;
     private int windowSize;
     private int timeoutMs;
-
-    // private fields used by Selective Repeat SENDER
-    private int sendNextSeqNum;
-    private int sendWindowBase;
-    private HashSet<Integer> ackedPackets = new HashSet<Integer>();
-    private List<Integer> queuedPackets = new ArrayList<Integer>();
-    private HashMap<Integer, Packet> sendPackets = new HashMap<Integer, Packet>();
-    private HashMap<Integer, Long> inFlightPacketTimes = new HashMap<Integer, Long>();
+    private Options options;
+
+    // private fields used by the event loop
+    // everything in SRNode is only ever touched by the event loop thread, other threads
+    // hand it work through the commands queue and wake it up with the selector
+    private DatagramChannel channel;
+    private Selector selector;
+    private InetAddress localHost;
+    private BufferPool bufferPool = new BufferPool(PacketFormat.MAX_DATAGRAM_SIZE);
+    private HashMap<Integer, InetSocketAddress> addresses = new HashMap<Integer, InetSocketAddress>();
+    private PriorityQueue<ScheduledTask> timers = new PriorityQueue<ScheduledTask>();
+    private ConcurrentLinkedQueue<Runnable> commands = new ConcurrentLinkedQueue<Runnable>();
+    private volatile boolean running = true;
+
+    // everything we print goes through here, see EventLog
+    private EventLog log;
+
+    // every stream we send or receive on, keyed by peer port and stream id, see Stream
+    private HashMap<Long, Stream> streams = new HashMap<Long, Stream>();
 
     // private fields used by Select Repeat RECEIVER
-    private int rcvWindowBase;
-    private HashMap<Integer, Packet> rcvdPackets = new HashMap<Integer, Packet>();
-    private double lossRate;
+    private LossModel lossModel;
+
+    // loss decisions that no stream prints (see ShouldDrop), printed after every stream's own loss line
+    private long numOtherDecisions;
+    private long numOtherDropped;
+
+    public SRNode(int sourcePort, int destPort, int windowSize, int timeoutMs, double lossRate) throws IllegalArgumentException, IOException {
+        this(sourcePort, destPort, windowSize, timeoutMs, lossRate, new Options());
+    }
 
-    public SRNode(int sourcePort, int destPort, int windowSize, int timeoutMs, double lossRate) throws IllegalArgumentException, SocketException {
+    public SRNode(int sourcePort, int destPort, int windowSize, int timeoutMs, double lossRate, Options options) throws IllegalArgumentException, IOException {
 
         if (lossRate < 0 || lossRate >= 1 || sourcePort <= 0 || destPort <= 0 || windowSize <= 0 || timeoutMs <= 0) {
             throw new IllegalArgumentException("Arguments outside valid range.");
@@ -61,8 +93,18 @@ public class SRNode {
         this.destPort = destPort;
         this.windowSize = windowSize;
         this.timeoutMs = timeoutMs;
-        this.lossRate = lossRate;
-        this.socket = new DatagramSocket(sourcePort);
+        this.lossModel = new LossModel(lossRate, options.MeanBurstLength, options.Seed);
+        this.options = options;
+        this.log = new EventLog(options.LogLevel);
+
+        // all communication is on the same machine, so use local host
+        this.localHost = InetAddress.getLocalHost();
+
+        this.channel = DatagramChannel.open();
+        this.channel.bind(new InetSocketAddress(sourcePort));
+        this.channel.configureBlocking(false);
+        this.selector = Selector.open();
+        this.channel.register(selector, SelectionKey.OP_READ);
     }
 
     // *********************************************
@@ -71,362 +113,2641 @@ public class SRNode {
 
     // set up SRNode
     public void Initialize() {
+        // print on another thread
+        log.Start();
+
         // listen for user input on another thread
         new Thread(new UserListener()).start();
 
-        // listen for udp updates on this thread
-        ListenForUpdates();
+        // run everything else on this thread
+        RunEventLoop();
+    }
+
+    // hand work to the event loop from any other thread
+    private void Post(Runnable command) {
+        commands.add(command);
+        selector.wakeup();
+    }
+
+    // run something on the event loop thread after a delay
+    private void Schedule(long deadline, Runnable action) {
+        timers.add(new ScheduledTask(deadline, action));
+    }
+
+    private static long Now() {
+        return System.currentTimeMillis();
+    }
+
+    // everything the peer sends on a stream, in order, for an application to read on its own thread
+    // open it before the peer starts sending, anything delivered before then isn't in it
+    // until the application reads the data it holds room in our window, so a slow reader slows the sender
+    public InputStream Open(final int peerPort, final int id) {
+        final StreamInput input = new StreamInput(windowSize, new Runnable() {
+            @Override
+            public void run() {
+                // called on the reader's thread, so the window update goes through the event loop
+                Post(new Runnable() {
+                    @Override
+                    public void run() {
+                        GetStream(peerPort, id).SendWindowUpdate();
+                    }
+                });
+            }
+        });
+
+        Post(new Runnable() {
+            @Override
+            public void run() {
+                GetStream(peerPort, id).input = input;
+            }
+        });
+
+        return input;
+    }
+
+    // stop the event loop, which closes the socket on its way out
+    // (a node run from the command line never stops, this is for Benchmark)
+    public void Close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    // the one thread that owns all SRNode state
+    // each time around: run posted commands, run timers that are due,
+    // then wait for datagrams until the next timer is due
+    private void RunEventLoop() {
+        while (running) {
+
+            Runnable command;
+            while ((command = commands.poll()) != null) {
+                command.run();
+            }
+
+            while (!timers.isEmpty() && timers.peek().Deadline <= Now()) {
+                timers.poll().Action.run();
+            }
+
+            // select(0) waits until a datagram or command shows up
+            long waitMs = 0;
+            if (!timers.isEmpty()) {
+                waitMs = Math.max(1, timers.peek().Deadline - Now());
+            }
+
+            try {
+                selector.select(waitMs);
+                selector.selectedKeys().clear();
+            }
+            catch (IOException e) {
+                continue; // just swallow this, we'll try again
+            }
+
+            ReceiveDatagrams();
+        }
+
+        try {
+            selector.close();
+            channel.close();
+        }
+        catch (IOException e) {
+            // swallow this, we're done with them anyway
+        }
     }
 
-    // listen for incoming udp messages
-    private void ListenForUpdates() {
-        // receive UDP messages forever
+    // read every datagram that is waiting on the channel
+    private void ReceiveDatagrams() {
         while (true) {
 
-            byte[] buffer = new byte[1024];
-            DatagramPacket receivedDatagram = new DatagramPacket(buffer, buffer.length);
+            ByteBuffer datagram = bufferPool.Take();
+            InetSocketAddress from;
 
             try {
-                socket.receive(receivedDatagram);
+                from = (InetSocketAddress)channel.receive(datagram);
             }
             catch (IOException e) {
-                continue; // just swallow this, received a weird packet
+                bufferPool.Release(datagram);
+                return; // just swallow this, we'll try reading again next time around
+            }
+
+            // nothing left to read
+            if (from == null) {
+                bufferPool.Release(datagram);
+                return;
             }
 
-            // simulate packet loss, done by receiver based on https://piazza.com/class#spring2013/csee4119/155
-            if (new Random().nextDouble() < lossRate) {
+            datagram.flip();
+
+            // we understand both formats, whichever one the other side was told to send
+            if (BinaryFormat.IsBinary(datagram)) {
+                HandleBinaryDatagram(from.getPort(), datagram);
                 continue;
             }
 
-            int fromPort = receivedDatagram.getPort();
-            String msg = new String(buffer, 0, receivedDatagram.getLength()).trim();
+            // one char per byte, so file data survives the trip through a String
+            byte[] bytes = new byte[datagram.remaining()];
+            datagram.get(bytes);
+            bufferPool.Release(datagram);
 
-            if (msg.startsWith("ACK")) {
-                int packetNum;
-                try {
-                    packetNum = Integer.parseInt(msg.split(",")[1]);
+            HandleTextDatagram(from.getPort(), new String(bytes, StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    // figure out if a binary datagram is an ACK or a packet and handle it
+    // a packet keeps the datagram (its body is a view into it) until it is released,
+    // anything else is done with it right away
+    private void HandleBinaryDatagram(int fromPort, ByteBuffer datagram) {
+        byte type = datagram.get(datagram.position());
+
+        if (type == BinaryFormat.ACK || type == BinaryFormat.SACK) {
+            int streamId;
+            int packetNum;
+            int windowBase = 0;
+            int windowEnd;
+            BitSet received = null;
+            try {
+                ByteBuffer in = datagram.duplicate();
+                in.get();
+                streamId = in.getInt();
+                packetNum = in.getInt();
+                int bodyLength = in.getShort() & 0xFFFF;
+                in.limit(in.position() + bodyLength);
+
+                if (type == BinaryFormat.SACK) {
+                    windowBase = in.getInt();
+                    windowEnd = in.getInt();
+                    received = BitSet.valueOf(in);
                 }
-                catch (Exception e) {
-                    continue; // this should never happen, invalid ACK message
+                else {
+                    windowEnd = in.getInt();
                 }
-                HandleReceivedAck(packetNum);
+            }
+            catch (Exception e) {
+                return; // this should never happen, invalid ACK message
+            }
+            finally {
+                bufferPool.Release(datagram);
+            }
+
+            if (ShouldDrop(FindStream(fromPort, streamId), null)) {
+                return;
+            }
+
+            if (type == BinaryFormat.SACK) {
+                HandleSack(fromPort, streamId, windowBase, received, windowEnd);
             }
             else {
-                Packet p = new Packet(msg, fromPort, sourcePort);
-                HandleReceived(p);
+                HandleAck(fromPort, streamId, packetNum, windowEnd);
             }
+            return;
         }
-    }
 
-    // when we receive an ACK, possibly shift window and possibly send
-    // more packets if any are waiting to be sent
-    private void HandleReceivedAck(int packetNum) {
+        Packet p;
+        try {
+            p = new Packet(datagram, fromPort, sourcePort);
+        }
+        catch (Exception e) {
+            bufferPool.Release(datagram);
+            return; // this should never happen, invalid packet
+        }
 
-        if (ackedPackets.contains(packetNum) || packetNum < sendWindowBase || packetNum >= sendWindowBase + windowSize) {
-            // note, we can assume sender/receiver windows are the same so that this will never happen
-            // see this post: https://piazza.com/class#spring2013/csee4119/152
+        Stream stream = GetStream(fromPort, p.Stream);
+        if (ShouldDrop(stream, p)) {
+            p.Release();
             return;
         }
+        stream.HandleReceived(p);
+    }
 
-        // mark the packet as ACKed
-        ackedPackets.add(packetNum);
+    // figure out if a text datagram is an ACK or a packet and handle it
+    private void HandleTextDatagram(int fromPort, String msg) {
 
-        // if this is the first packet in the window, shift window and send more packets
-        if (sendWindowBase == packetNum) {
+        if (msg.startsWith(AckFormat.ACK_PREFIX)) {
+            msg = msg.trim();
+            int packetNum;
+            int windowEnd = -1;
+            int streamId = 0;
+            try {
+                String[] parts = msg.split(",");
+                packetNum = Integer.parseInt(parts[1]);
+                if (parts.length > 2) {
+                    windowEnd = Integer.parseInt(parts[2]);
+                }
+                if (parts.length > 3) {
+                    streamId = Integer.parseInt(parts[3]);
+                }
+            }
+            catch (Exception e) {
+                return; // this should never happen, invalid ACK message
+            }
+            if (ShouldDrop(FindStream(fromPort, streamId), null)) {
+                return;
+            }
+            HandleAck(fromPort, streamId, packetNum, windowEnd);
+        }
+        else if (msg.startsWith(AckFormat.SACK_PREFIX)) {
+            msg = msg.trim();
+            int windowBase;
+            BitSet received;
+            int windowEnd = -1;
+            int streamId = 0;
+            try {
+                String[] parts = msg.split(",");
+                windowBase = Integer.parseInt(parts[2]);
+                received = AckFormat.ParseBitmap(parts.length > 3 ? parts[3] : "");
+                if (parts.length > 4) {
+                    windowEnd = Integer.parseInt(parts[4]);
+                }
+                if (parts.length > 5) {
+                    streamId = Integer.parseInt(parts[5]);
+                }
+            }
+            catch (Exception e) {
+                return; // this should never happen, invalid SACK message
+            }
+            if (ShouldDrop(FindStream(fromPort, streamId), null)) {
+                return;
+            }
+            HandleSack(fromPort, streamId, windowBase, received, windowEnd);
+        }
+        else {
+            Packet p;
+            try {
+                p = new Packet(msg, fromPort, sourcePort);
+            }
+            catch (Exception e) {
+                return; // this should never happen, invalid packet
+            }
 
-            // shift the window up to the next unACKed packet
-            while (ackedPackets.contains(sendWindowBase)) {
-                sendWindowBase++;
+            Stream stream = GetStream(fromPort, p.Stream);
+            if (ShouldDrop(stream, p)) {
+                return;
             }
+            stream.HandleReceived(p);
+        }
+    }
 
-            // print the ACK2
-            SenderPrinting.PrintAck2(packetNum, sendWindowBase, sendWindowBase + windowSize);
+    // simulate packet loss, done by receiver based on https://piazza.com/class#spring2013/csee4119/155
+    // still one decision per datagram, but made once we know what it is, so it's counted where it gets printed:
+    // ACKs (payload is null) on their stream, file packets on the stream receiving the file, and anything
+    // else for the whole node, typed text has no end the receiver could print at, and an ACK may have no stream
+    private boolean ShouldDrop(Stream stream, Packet payload) {
+        boolean drop = lossModel.ShouldDrop();
+        boolean filePacket = payload != null && (payload.Kind == PacketFormat.FILE_START || payload.Kind == PacketFormat.FILE_DATA);
+
+        // a late copy of a packet of a file that's already done isn't part of any file we could print it with
+        if (filePacket && stream != null && stream.rcvFile == null && payload.Number < stream.rcvWindowBase) {
+            filePacket = false;
+        }
 
-            // send all pending packets that are inside the new window
-            while (!queuedPackets.isEmpty() && queuedPackets.get(0) < sendWindowBase + windowSize) {
-                int nextPacketToSend = queuedPackets.remove(0);
-                SendOnePacket(sendPackets.get(nextPacketToSend));
-            }
+        if (stream != null && (payload == null || filePacket)) {
+            stream.CountLoss(payload == null, drop);
         }
         else {
-            // just print ACK1, don't move window or send anything new
-            SenderPrinting.PrintAck1(packetNum);
+            numOtherDecisions++;
+            numOtherDropped += drop ? 1 : 0;
         }
-
+        return drop;
     }
 
-    // when we receive a packet, possibly shift window and
-    // deliver data to next layer up, and always send an ACK
-    private void HandleReceived(Packet payload) {
+    // windowEnd is -1 if the ACK didn't say where the receiver's window ends
+    // an ACK (or window update) for a stream we never used is stray, ignore it
+    private void HandleAck(int fromPort, int streamId, int packetNum, int windowEnd) {
+        Stream stream = FindStream(fromPort, streamId);
+        if (stream == null) {
+            return;
+        }
+        if (windowEnd >= 0) {
+            stream.HandleWindowAdvertisement(windowEnd);
+        }
+        stream.HandleReceivedAck(packetNum);
+
+        if (options.FastRetransmitAcks > 0) {
+            stream.CheckForFastRetransmit(packetNum);
+        }
+    }
 
-        if (payload.Number >= rcvWindowBase + windowSize) {
-            // this should never happen because we can assume sender/receiver windows are the same
-            // see this post: https://piazza.com/class#spring2013/csee4119/152
+    private void HandleSack(int fromPort, int streamId, int windowBase, BitSet received, int windowEnd) {
+        Stream stream = FindStream(fromPort, streamId);
+        if (stream == null) {
             return;
         }
+        if (windowEnd >= 0) {
+            stream.HandleWindowAdvertisement(windowEnd);
+        }
+        stream.HandleReceivedSack(windowBase, received);
 
-        // if the packet is before our window or we've received it, discard it
-        if (payload.Number < rcvWindowBase || rcvdPackets.containsKey(payload.Number)) {
-            ReceiverPrinting.PrintDiscardPacket(payload.Number, payload.Data);
+        if (options.FastRetransmitAcks > 0) {
+            stream.CheckForFastRetransmit(Math.max(windowBase - 1, windowBase + received.length() - 1));
         }
-        else {
-            // mark the packet received
-            rcvdPackets.put(payload.Number, payload);
+    }
 
-            // if this is the first packet in our window, shift window and deliver data (in theory)
-            if (payload.Number == rcvWindowBase) {
+    // the stream with this id to or from a peer, made the first time we use it or get a data packet on it
+    private Stream GetStream(int peerPort, int id) {
+        Stream stream = FindStream(peerPort, id);
+        if (stream == null) {
+            stream = new Stream(peerPort, id);
+            streams.put(StreamKey(peerPort, id), stream);
+        }
+        return stream;
+    }
 
-                // shift the window up to the next packet we need
-                while (rcvdPackets.containsKey(rcvWindowBase)) {
+    // the stream with this id to or from a peer, or null if there isn't one yet
+    private Stream FindStream(int peerPort, int id) {
+        return streams.get(StreamKey(peerPort, id));
+    }
 
-                    // ***** NOTE: THIS IS WHERE WE CAN GUARANTEE IN-ORDER DATA
-                    // System.out.println("# DELIVER: " + rcvdPackets.get(rcvWindowBase).Data);
+    private static long StreamKey(int peerPort, int id) {
+        return ((long)peerPort << 32) | (id & 0xFFFFFFFFL);
+    }
 
-                    rcvWindowBase++;
-                }
+    // one reliable stream to one peer, with its own sequence numbers, windows and timers
+    // many streams share the node's socket and event loop, but a stream only ever waits on
+    // its own packets, so one slow or lossy stream never holds up the others
+    // stream 0 to destPort is the one the "send" and "sendfile" commands use
+    private class Stream {
+
+        private final int peerPort;
+        private final int id;
+
+        // private fields used by Selective Repeat SENDER
+        private int sendNextSeqNum;
+        private int sendWindowBase;
+        private HashSet<Integer> ackedPackets = new HashSet<Integer>();
+        private ArrayDeque<Integer> queuedPackets = new ArrayDeque<Integer>();
+        private ArrayDeque<SendCompletion> sendCompletions = new ArrayDeque<SendCompletion>();
+        private HashMap<Integer, Packet> sendPackets = new HashMap<Integer, Packet>();
+        private HashMap<Integer, Long> inFlightPacketTimes = new HashMap<Integer, Long>();
+
+        // the receiver tells us the first packet number it has no room for in every ACK,
+        // until we hear from it we assume its window is the same size as ours
+        private int peerWindowEnd;
+        private boolean heardPeerWindow;
+
+        // private fields used by congestion control, only when options.CongestionControl is set
+        // cwnd is measured in packets, and we don't cut it again for the same loss event
+        // until everything that was in flight when the loss happened has been sent past
+        private double cwnd = 1;
+        private double ssthresh;
+        private int lossRecoverySeqNum;
+
+        // sender statistics, printed when everything we were asked to send is ACKed
+        private int numPacketsSent;
+        private int numRetransmissions;
+        private int numFastRetransmissions;
+        private long sendStartTime;
+
+        // what the loss model did to this stream since the last summary, so the two can be checked against each other
+        // as a sender the ACKs (and SACKs) since the send started, as a receiver the packets of the file
+        private int numAcksSeen;
+        private int numAcksDropped;
+        private int numFilePacketsSeen;
+        private int numFilePacketsDropped;
+
+        // every transmission gets a number, so a retransmission timer knows if it's for the last one,
+        // and fast retransmit (only when options.FastRetransmitAcks > 0) only counts ACKs for packets
+        // sent after the last transmission of a missing packet as evidence that it was lost
+        private int numTransmissions;
+        private HashMap<Integer, Integer> lastTransmission = new HashMap<Integer, Integer>();
+        private HashMap<Integer, Integer> lossEvidence = new HashMap<Integer, Integer>();
+
+        // private fields used by Select Repeat RECEIVER
+        private int rcvWindowBase;
+        private HashMap<Integer, Packet> rcvdPackets = new HashMap<Integer, Packet>();
+
+        // where an application reads what we deliver, if one has opened this stream (see Open)
+        // data it hasn't read yet takes up room in our window, so we advertise less, but we never
+        // take back room we've already advertised, the sender may have packets on the way for it
+        private StreamInput input;
+        private int rcvAdvertisedEnd;
+
+        // private fields used by delayed ACKs, only when options.DelayAckMs > 0
+        // we hold back the ACK for in-order packets and send one SACK covering all of them
+        private int numPendingAcks;
+        private int lastPendingAckNum;
+        private int pendingAckPort;
+        private long pendingAckDeadline;
+
+        // private fields used to receive a file, written as its packets are delivered in order
+        private FileChannel rcvFile;
+        private String rcvFileName;
+        private long rcvFileSize;
+        private long rcvFileBytesWritten;
+        private long rcvFileStartTime;
+
+        // private fields used by forward error correction, only when options.FecBlockSize > 0
+        // after each block of packets the sender sends one parity packet, the XOR of the whole block,
+        // which lets the receiver rebuild any one packet of the block that was lost without waiting for it
+        // the receiver keeps every packet it gets as sent until the parity for it has had time to arrive
+        private HashMap<Integer, Packet> pendingParity = new HashMap<Integer, Packet>();
+        private HashMap<Integer, byte[]> rcvdBytes = new HashMap<Integer, byte[]>();
+        private int numParitySent;
+        private int numRebuilt;
+
+        public Stream(int peerPort, int id) {
+            this.peerPort = peerPort;
+            this.id = id;
+
+            // slow start until we fill the whole window the first time
+            this.ssthresh = windowSize;
+            this.peerWindowEnd = windowSize;
+        }
 
-                // print Receive2
-                ReceiverPrinting.PrintReceive2(payload.Number, payload.Data, rcvWindowBase, rcvWindowBase + windowSize);
-            }
-            else {
-                // just print Receive1, don't shift window or deliver data
-                ReceiverPrinting.PrintReceive1(payload.Number, payload.Data);
+        // when we receive an ACK, possibly shift window and possibly send
+        // more packets if any are waiting to be sent
+        private void HandleReceivedAck(int packetNum) {
+
+            if (ackedPackets.contains(packetNum) || packetNum < sendWindowBase || packetNum >= sendNextSeqNum) {
+                // duplicate ACK, or just a window update from the receiver
+                return;
             }
-        }
 
-        // send an ACK no matter what
-        UnreliableSend(payload.SourcePort, "ACK," + payload.Number);
-        ReceiverPrinting.PrintSendAck(payload.Number);
+            // mark the packet as ACKed, it's no longer in flight
+            ackedPackets.add(packetNum);
+            inFlightPacketTimes.remove(packetNum);
+            sendPackets.remove(packetNum);
 
-    }
+            // a new ACK means the path has room, so open up the congestion window
+            if (options.CongestionControl) {
+                GrowCongestionWindow();
+            }
 
-    // chop a message into characters and send each character as a packet
-    private void SendMessage(final String message) {
-        List<Packet> packets = new ArrayList<Packet>();
-        for (char c : message.toCharArray()) {
-            Packet payload = new Packet(Character.toString(c), sendNextSeqNum++, sourcePort, destPort);
-            packets.add(payload);
-        }
-        SendPacketsImpl(packets);
-    }
+            // if this is the first packet in the window, shift window
+            if (sendWindowBase == packetNum) {
 
-    // ensures that a set of packets is sent successfully
-    // sends them once, then monitors for timeouts until
-    // all packets are ACKed
-    private void SendPacketsImpl(List<Packet> packets) {
+                // shift the window up to the next unACKed packet
+                // anything below the window base is ACKed, so we can stop remembering it
+                while (ackedPackets.remove(sendWindowBase)) {
+                    lastTransmission.remove(sendWindowBase);
+                    sendWindowBase++;
+                }
 
-        // send or queue all of the packets
-        for (Packet payload : packets) {
-            sendPackets.put(payload.Number, payload);
+                // print the ACK2
+                log.Ack2(id, packetNum, sendWindowBase, SendWindowEnd());
 
-            // if the window is full, save it for later
-            if (payload.Number >= sendWindowBase + windowSize) {
-                queuedPackets.add(payload.Number);
+                // let anyone waiting on packets below the new window base know they're done
+                while (!sendCompletions.isEmpty() && sendCompletions.peek().LastPacketNum < sendWindowBase) {
+                    sendCompletions.poll().OnComplete.run();
+                }
             }
             else {
-                SendOnePacket(payload);
+                // just print ACK1, don't move window
+                log.Ack1(id, packetNum);
+            }
+
+            // the window may have moved or grown, so send more packets
+            SendQueuedPackets();
+            ProbeClosedWindow();
+
+            if (inFlightPacketTimes.isEmpty() && queuedPackets.isEmpty()) {
+                FinishSending();
             }
+
         }
 
-        // wait for all packets to be ACKed and check for timeouts
-        while (true) {
+        // a selective ACK covers everything before the receiver's window base,
+        // plus every packet marked in the bitmap, so treat each one as its own ACK
+        private void HandleReceivedSack(int rcvWindowBase, BitSet received) {
 
-            // check for timeouts every 10ms
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                // if the thread gets aborted, we're screwed
+            // cumulative part, everything before the receiver's base has been received
+            for (int packetNum = sendWindowBase; packetNum < rcvWindowBase && packetNum < sendNextSeqNum; packetNum++) {
+                if (!ackedPackets.contains(packetNum)) {
+                    HandleReceivedAck(packetNum);
+                }
             }
 
-            // if nothing is in flight, we're done!
-            if (inFlightPacketTimes.isEmpty()) {
-                break;
+            // selective part, bit i is packet rcvWindowBase + i
+            for (int i = received.nextSetBit(0); i >= 0; i = received.nextSetBit(i + 1)) {
+                int packetNum = rcvWindowBase + i;
+                if (!ackedPackets.contains(packetNum)) {
+                    HandleReceivedAck(packetNum);
+                }
+            }
+        }
+
+        // an ACK for a packet that was sent after an unACKed packet means the unACKed
+        // one was probably lost, once we have enough of these resend it without waiting for its timeout
+        private void CheckForFastRetransmit(int highestAckedNum) {
+            if (!lastTransmission.containsKey(highestAckedNum)) {
+                return;
             }
+            int ackedTransmission = lastTransmission.get(highestAckedNum);
 
-            for (Integer packetNum : new ArrayList<Integer>(inFlightPacketTimes.keySet())) {
+            for (int packetNum = sendWindowBase; packetNum < highestAckedNum; packetNum++) {
 
-                // if the packet has been ACKed, no longer in flight
-                if (ackedPackets.contains(packetNum)) {
-                    inFlightPacketTimes.remove(packetNum);
+                if (ackedPackets.contains(packetNum) || !inFlightPacketTimes.containsKey(packetNum)) {
                     continue;
                 }
 
-                // check for timeout
-                if (inFlightPacketTimes.get(packetNum) + timeoutMs < Calendar.getInstance().getTimeInMillis()) {
-                    // note that SDNode does not print anything when timeouts happen
+                // ACKs for packets sent before our last try say nothing about that try
+                if (lastTransmission.get(packetNum) > ackedTransmission) {
+                    continue;
+                }
+
+                int evidence = lossEvidence.containsKey(packetNum) ? lossEvidence.get(packetNum) + 1 : 1;
+                lossEvidence.put(packetNum, evidence);
+
+                if (evidence >= options.FastRetransmitAcks) {
+                    // a fast retransmit is a milder loss signal than a timeout, so only halve the window
+                    if (options.CongestionControl) {
+                        HalveCongestionWindow(packetNum);
+                    }
                     SendOnePacket(sendPackets.get(packetNum));
+                    numRetransmissions++;
+                    numFastRetransmissions++;
                 }
             }
         }
 
-        // at this point, all packets have been ACKed, clear out send buffer
-        sendPackets.clear();
-    }
+        // after the first one, the receiver's window only ever moves forward, so an older (reordered) ACK can't shrink it
+        private void HandleWindowAdvertisement(int windowEnd) {
+            // the first advertisement replaces our guess, even if the receiver's window is smaller
+            if (windowEnd > peerWindowEnd || !heardPeerWindow) {
+                int oldWindowEnd = peerWindowEnd;
+                heardPeerWindow = true;
+                peerWindowEnd = windowEnd;
+
+                // anything we probed the closed window with was refused, and now it fits
+                for (int packetNum = oldWindowEnd; packetNum < windowEnd; packetNum++) {
+                    if (inFlightPacketTimes.containsKey(packetNum)) {
+                        SendOnePacket(sendPackets.get(packetNum));
+                    }
+                }
 
-    // send a packet unreliably and update it's timestamp
-    private void SendOnePacket(final Packet payload) {
-        inFlightPacketTimes.put(payload.Number, Calendar.getInstance().getTimeInMillis());
-        UnreliableSend(payload.DestPort, payload.toString());
-        SenderPrinting.PrintSendPacket(payload.Number, payload.Data);
-    }
+                SendQueuedPackets();
+            }
+        }
 
-    // send a message unreliably to a port
-    private void UnreliableSend(int toPort, String message) {
-        try {
-            // all communication is on the same machine, so use local host
-            InetAddress receiverAddress = InetAddress.getLocalHost();
-            byte[] buffer = message.getBytes();
-            DatagramPacket sendDatagram = new DatagramPacket(buffer, buffer.length, receiverAddress, toPort);
-            socket.send(sendDatagram);
+        // send all pending packets that are inside the current window
+        private void SendQueuedPackets() {
+            while (!queuedPackets.isEmpty() && queuedPackets.peekFirst() < SendWindowEnd()) {
+                int nextPacketToSend = queuedPackets.pollFirst();
+                SendOnePacket(sendPackets.get(nextPacketToSend));
+            }
         }
-        catch (IOException e) {
-            // swallow this, we will resend if needed
+
+        // if the receiver's window is closed, nothing will ever come back to open it,
+        // so push the next packet anyway as a probe, it gets resent on timeout like any other
+        private void ProbeClosedWindow() {
+            if (inFlightPacketTimes.isEmpty() && !queuedPackets.isEmpty()) {
+                SendOnePacket(sendPackets.get(queuedPackets.pollFirst()));
+            }
         }
-    }
 
-    // *********************************************
-    // ************** HELPER CLASSES ***************
-    // *********************************************
+        // first packet number we are not allowed to send yet, limited by our own window
+        // (or the congestion window) and by how much room the receiver advertised
+        private int SendWindowEnd() {
+            int ourWindowEnd = sendWindowBase + windowSize;
+            if (options.CongestionControl) {
+                ourWindowEnd = sendWindowBase + Math.max(1, (int)cwnd);
+            }
+            return Math.min(ourWindowEnd, peerWindowEnd);
+        }
 
-    // thread that listens for user input and delegates
-    // different commands to the SRNode
-    private class UserListener implements Runnable {
+        // slow start (one packet per ACK) below ssthresh, then additive increase (one packet per window)
+        private void GrowCongestionWindow() {
+            int before = SendWindowEnd();
 
-        @Override
-        public void run() {
-            // accept user input forever
-            while (true) {
-                String message = GetMessageFromUser();
-                if (message == null) {
-                    UnrecognizedInput();
-                    continue;
-                }
-                SendMessage(message);
+            if (cwnd < ssthresh) {
+                cwnd += 1;
+            }
+            else {
+                cwnd += 1 / cwnd;
+            }
+
+            // no point in growing past what the receiver will accept
+            cwnd = Math.min(cwnd, Math.max(1, peerWindowEnd - sendWindowBase));
+
+            // only print the trace when the usable window actually changes
+            if (SendWindowEnd() != before) {
+                log.CongestionWindow(id, cwnd, ssthresh);
             }
         }
 
-        private String GetMessageFromUser() {
+        // multiplicative decrease without going back to slow start, used for fast retransmits
+        private void HalveCongestionWindow(int lostPacketNum) {
 
-            BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+            // packets sent before the last cut belong to the same loss event
+            if (lostPacketNum < lossRecoverySeqNum) {
+                return;
+            }
 
-            String userInput;
+            ssthresh = Math.max(cwnd / 2, 2);
+            cwnd = ssthresh;
+            lossRecoverySeqNum = sendNextSeqNum;
 
-            // read from std in
-            try {
-                userInput = br.readLine();
-            } catch (IOException e) {
-                return null;
+            log.CongestionWindow(id, cwnd, ssthresh);
+        }
+
+        // multiplicative decrease on a timeout, then slow start back up
+        private void ShrinkCongestionWindow(int lostPacketNum) {
+
+            // packets sent before the last cut belong to the same loss event
+            if (lostPacketNum < lossRecoverySeqNum) {
+                return;
             }
 
-            // now make sure it is a valid "send" command, and parse out the message
+            ssthresh = Math.max(cwnd / 2, 2);
+            cwnd = 1;
+            lossRecoverySeqNum = sendNextSeqNum;
+
+            log.CongestionWindow(id, cwnd, ssthresh);
+        }
+
+        // when we receive a packet, possibly shift window and
+        // deliver data to next layer up, and always send an ACK
+        private void HandleReceived(Packet payload) {
 
-            int commandSeparator = userInput.indexOf(' ');
+            // parity isn't a numbered packet of its own, it never gets ACKed
+            if (payload.Kind == PacketFormat.FEC_PARITY) {
+                HandleReceivedParity(payload);
+                payload.Release();
+                return;
+            }
 
-            if (commandSeparator < 0) {
-                return null;
+            if (payload.Number >= RcvWindowEnd()) {
+                // we have no room for this, but tell the sender where our window is
+                // (this also answers the sender probing a closed window)
+                SendWindowUpdate();
+                payload.Release();
+                return;
             }
 
-            String command = userInput.substring(0, commandSeparator);
-            String message = userInput.substring(commandSeparator + 1);
+            // true only if this packet moved the window past itself alone and left no gaps behind it
+            // one that fills a gap moves it past packets that came out of order, and gets ACKed right away
+            boolean inOrder = false;
 
-            if (!"send".equals(command)) {
-                return null;
+            // if the packet is before our window or we've received it, discard it
+            if (payload.Number < rcvWindowBase || rcvdPackets.containsKey(payload.Number)) {
+                log.Discard(payload);
+                payload.Release();
             }
+            else {
+                // mark the packet received
+                rcvdPackets.put(payload.Number, payload);
+                if (options.FecBlockSize > 0) {
+                    rcvdBytes.put(payload.Number, payload.Encode());
+                }
 
-            return message;
-        }
+                // if this is the first packet in our window, shift window and deliver data (in theory)
+                if (payload.Number == rcvWindowBase) {
 
-        private void UnrecognizedInput(){
-            System.err.println("Oops, I don't recognize that command, try again.");
-        }
+                    // shift the window up to the next packet we need
+                    // anything below the window base gets discarded, so we can stop remembering it
+                    while (rcvdPackets.containsKey(rcvWindowBase)) {
 
-    }
+                        // ***** NOTE: THIS IS WHERE WE CAN GUARANTEE IN-ORDER DATA
+                        Packet delivered = rcvdPackets.remove(rcvWindowBase);
+                        DeliverPacket(delivered);
+                        delivered.Release();
 
-    // an individual packet to be sent with UDP
-    private class Packet {
-        public final int SourcePort;
-        public final int DestPort;
-        public final String Data;
-        public final int Number;
+                        // by now the parity for anything this far back has come or isn't coming
+                        rcvdBytes.remove(rcvWindowBase - windowSize - options.FecBlockSize);
 
-        public Packet(String data, int number, int sourcePort, int destPort) {
-            Data = data;
-            Number = number;
-            SourcePort = sourcePort;
-            DestPort = destPort;
-        }
+                        rcvWindowBase++;
+                    }
 
-        public Packet(String pcktAsString, int sourcePort, int destPort) {
-            SourcePort = sourcePort;
-            DestPort = destPort;
+                    inOrder = rcvWindowBase == payload.Number + 1 && !HasBufferedPackets();
 
-            int separator = pcktAsString.indexOf('_');
-            Number = Integer.parseInt(pcktAsString.substring(0, separator));
-            Data = pcktAsString.substring(separator + 1);
-        }
+                    // print Receive2
+                    log.Receive2(payload, rcvWindowBase, RcvWindowEnd());
+                }
+                else {
+                    // just print Receive1, don't shift window or deliver data
+                    log.Receive1(payload);
+                }
+            }
 
-        @Override
-        public String toString() {
-            return Number + "_" + Data;
-        }
-    }
+            // with delayed ACKs, hold back the ACK for a clean in-order packet
+            // anything else (a gap, a filled gap or a duplicate) gets ACKed right away so the sender hears about it
+            if (options.DelayAckMs > 0) {
+                DelayAck(payload, inOrder);
+                return;
+            }
 
-    // defines what we print for the sender component
-    private static class SenderPrinting {
+            // send an ACK no matter what
+            SendAckFor(payload.SourcePort, payload.Number);
+            log.SendAck(id, payload.Number);
 
-        public static void PrintSendPacket(int packetNum, String data) {
-            long timestamp = Calendar.getInstance().getTimeInMillis();
-            String toPrint = "[" + timestamp + "] packet-" + packetNum + " " + data + " sent";
-            System.out.println(toPrint);
         }
 
-        // Receive Ack-1 refers to receiving the ack but no window advancement occurs
-        public static void PrintAck1(int packetNum) {
-            long timestamp = Calendar.getInstance().getTimeInMillis();
-            String toPrint = "[" + timestamp + "] ACK-" + packetNum + " received";
-            System.out.println(toPrint);
+        // if we have all but one packet of the block, XOR the parity with the ones we
+        // have to get back the missing one, then handle it as if it had just arrived
+        private void HandleReceivedParity(Packet parity) {
+            if (options.FecBlockSize == 0) {
+                return; // we haven't kept what we received, so there is nothing to XOR with
+            }
+
+            int length = (int)parity.Offset;
+            ByteBuffer body = parity.Body();
+            byte[] bytes = new byte[body.remaining()];
+            body.get(bytes);
+
+            int missing = -1;
+            for (int packetNum = parity.Number; packetNum < parity.Number + parity.BlockSize; packetNum++) {
+                byte[] received = rcvdBytes.get(packetNum);
+
+                if (received == null) {
+                    // anything below the window base was received, we just stopped keeping it
+                    if (packetNum < rcvWindowBase) {
+                        return;
+                    }
+                    // parity can only make up for one lost packet
+                    if (missing >= 0) {
+                        return;
+                    }
+                    missing = packetNum;
+                    continue;
+                }
+
+                length ^= received.length;
+                if (received.length > bytes.length) {
+                    return; // the parity doesn't match what we have
+                }
+                for (int i = 0; i < received.length; i++) {
+                    bytes[i] ^= received[i];
+                }
+            }
+
+            if (missing < 0 || length <= 0 || length > bytes.length) {
+                return; // nothing lost, or the parity doesn't match what we have
+            }
+
+            Packet rebuilt;
+            try {
+                rebuilt = new Packet(ByteBuffer.wrap(bytes, 0, length), parity.SourcePort, parity.DestPort);
+            }
+            catch (Exception e) {
+                return; // the parity doesn't match what we have
+            }
+            if (rebuilt.Number != missing || rebuilt.Stream != id) {
+                return;
+            }
+
+            numRebuilt++;
+            log.Rebuilt(rebuilt);
+            HandleReceived(rebuilt);
         }
 
-        // window advancement occurs for Receive Ack-2, with starting/ending packet number of the window
-        public static void PrintAck2(int packetNum, int windowStart, int windowEnd) {
-            long timestamp = Calendar.getInstance().getTimeInMillis();
-            String toPrint = "[" + timestamp + "] ACK-" + packetNum + " received; window = [" + windowStart + "," + windowEnd + "]";
-            System.out.println(toPrint);
+        // hand an in-order packet to the next layer up
+        // typed characters have nowhere to go, but file data gets written out
+        private void DeliverPacket(Packet payload) {
+            // an application is reading this stream, so it gets the data instead
+            if (input != null) {
+                if (payload.Kind == PacketFormat.TEXT) {
+                    input.Add(payload.Data.getBytes(StandardCharsets.UTF_8));
+                }
+                else if (payload.Kind == PacketFormat.FILE_DATA) {
+                    // copied out, the datagram it's in gets reused once we're done here
+                    ByteBuffer body = payload.Body();
+                    byte[] data = new byte[body.remaining()];
+                    body.get(data);
+                    input.Add(data);
+                }
+                return;
+            }
+
+            if (payload.Kind == PacketFormat.FILE_START) {
+                StartReceivingFile(payload.Data);
+            }
+            else if (payload.Kind == PacketFormat.FILE_DATA) {
+                WriteFileData(payload);
+            }
         }
 
-        public static void PrintTimeout(int packetNum) {
-            long timestamp = Calendar.getInstance().getTimeInMillis();
-            String toPrint = "[" + timestamp + "] packet-" + packetNum + " timeout";
-            System.out.println(toPrint);
+        // open the file announced by the sender, see PacketFormat.FileStart
+        private void StartReceivingFile(String fileInfo) {
+            int separator = fileInfo.indexOf(',');
+            rcvFileSize = Long.parseLong(fileInfo.substring(0, separator));
+
+            // never write outside the working directory, whatever name the sender used
+            String fileName = Paths.get(fileInfo.substring(separator + 1)).getFileName().toString();
+            rcvFileName = "received_" + fileName;
+            rcvFileBytesWritten = 0;
+            rcvFileStartTime = Now();
+
+            try {
+                rcvFile = FileChannel.open(Paths.get(rcvFileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            }
+            catch (IOException e) {
+                System.err.println("Oops, could not open " + rcvFileName + " to receive a file.");
+                rcvFile = null;
+                return;
+            }
+
+            if (rcvFileSize == 0) {
+                FinishReceivingFile();
+            }
         }
 
-    }
+        // write one piece of the file at its offset
+        private void WriteFileData(Packet payload) {
+            if (rcvFile == null) {
+                return; // we couldn't open the file, nothing to do
+            }
 
-    // defines what we print for the receiver component
-    private static class ReceiverPrinting {
+            // straight out of the datagram we received it in
+            ByteBuffer data = payload.Body();
+            try {
+                while (data.hasRemaining()) {
+                    rcvFile.write(data, payload.Offset + data.position());
+                }
+            }
+            catch (IOException e) {
+                System.err.println("Oops, could not write to " + rcvFileName + ".");
+                return;
+            }
 
-        public static void PrintReceive1(int packetNum, String data) {
-            long timestamp = Calendar.getInstance().getTimeInMillis();
-            String toPrint = "[" + timestamp + "] packet-" + packetNum + " " + data + " received";
-            System.out.println(toPrint);
+            rcvFileBytesWritten += data.limit();
+            if (rcvFileBytesWritten >= rcvFileSize) {
+                FinishReceivingFile();
+            }
         }
 
-        public static void PrintReceive2(int packetNum, String data, int windowStart, int windowEnd) {
-            long timestamp = Calendar.getInstance().getTimeInMillis();
-            String toPrint = "[" + timestamp + "] packet-" + packetNum + " " + data + " received; window = [" + windowStart + "," + windowEnd + "]";
-            System.out.println(toPrint);
+        private void FinishReceivingFile() {
+            try {
+                rcvFile.close();
+            }
+            catch (IOException e) {
+                // swallow this, everything has already been written
+            }
+            rcvFile = null;
+
+            long elapsedMs = Now() - rcvFileStartTime;
+            log.FileReceived(id, rcvFileName, rcvFileBytesWritten, elapsedMs);
+            log.LossStats(id, numFilePacketsDropped, numFilePacketsSeen, false);
+            log.OtherLossStats(numOtherDropped, numOtherDecisions);
+            numFilePacketsSeen = 0;
+            numFilePacketsDropped = 0;
         }
 
-        public static void PrintSendAck(int packetNum) {
-            long timestamp = Calendar.getInstance().getTimeInMillis();
-            String toPrint = "[" + timestamp + "] ACK-" + packetNum + " sent";
-            System.out.println(toPrint);
+        // first packet number we have no room for, what we advertise in every ACK
+        private int RcvWindowEnd() {
+            int windowEnd = rcvWindowBase + windowSize;
+            if (input != null) {
+                windowEnd -= input.NumUnread();
+            }
+            rcvAdvertisedEnd = Math.max(rcvAdvertisedEnd, windowEnd);
+            return rcvAdvertisedEnd;
+        }
+
+        // tell the sender where our window is without ACKing anything new
+        private void SendWindowUpdate() {
+            SendAck(peerPort, id, rcvWindowBase - 1, RcvWindowEnd());
+        }
+
+        // true if we are holding any out-of-order packets past the window base
+        private boolean HasBufferedPackets() {
+            for (int i = 1; i < windowSize; i++) {
+                if (rcvdPackets.containsKey(rcvWindowBase + i)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // add a packet to the pending delayed ACK, and send it now if
+        // the packet was out of order or we've held back enough ACKs
+        private void DelayAck(Packet payload, boolean inOrder) {
+            if (numPendingAcks == 0) {
+                pendingAckDeadline = Now() + options.DelayAckMs;
+                Schedule(pendingAckDeadline, new Runnable() {
+                    @Override
+                    public void run() {
+                        FlushDelayedAckIfDue();
+                    }
+                });
+            }
+
+            numPendingAcks++;
+            lastPendingAckNum = payload.Number;
+            pendingAckPort = payload.SourcePort;
+
+            if (!inOrder || numPendingAcks >= options.DelayAckPackets) {
+                FlushDelayedAck();
+            }
+        }
+
+        // send one SACK for everything we've held back
+        private void FlushDelayedAck() {
+            if (numPendingAcks == 0) {
+                return;
+            }
+
+            SendAckFor(pendingAckPort, lastPendingAckNum);
+            log.SendAck(id, lastPendingAckNum);
+            numPendingAcks = 0;
+        }
+
+        // the timer may belong to a batch that was already flushed early
+        private void FlushDelayedAckIfDue() {
+            if (numPendingAcks > 0 && pendingAckDeadline <= Now()) {
+                FlushDelayedAck();
+            }
+        }
+
+        // the ACK for a received packet, either just that packet or
+        // our whole receive window when selective ACKs are turned on
+        private void SendAckFor(int toPort, int packetNum) {
+            if (!options.SelectiveAck) {
+                SendAck(toPort, id, packetNum, RcvWindowEnd());
+                return;
+            }
+
+            BitSet received = new BitSet(windowSize);
+            for (int i = 0; i < windowSize; i++) {
+                if (rcvdPackets.containsKey(rcvWindowBase + i)) {
+                    received.set(i);
+                }
+            }
+            SendSack(toPort, id, packetNum, rcvWindowBase, received, RcvWindowEnd());
+        }
+
+        // map a file into memory and send it in FILE_CHUNK_SIZE pieces,
+        // each packet reads its piece straight out of the mapped file when it is sent
+        private void SendFile(String path) {
+            try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+
+                long fileSize = channel.size();
+                if (fileSize > Integer.MAX_VALUE) {
+                    System.err.println("Oops, " + path + " is too big to send.");
+                    return;
+                }
+                MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+
+                List<Packet> packets = new ArrayList<Packet>();
+                packets.add(new Packet(PacketFormat.FILE_START, PacketFormat.FileStart(fileSize, path), sendNextSeqNum++, id, sourcePort, peerPort));
+                AddFileData(file, PacketFormat.FILE_CHUNK_SIZE, packets);
+
+                final String filePath = path;
+                final long numBytes = fileSize;
+                final long startTime = Now();
+
+                SendPackets(packets, new Runnable() {
+                    @Override
+                    public void run() {
+                        log.FileSent(id, filePath, numBytes, Now() - startTime);
+                    }
+                });
+            }
+            catch (IOException e) {
+                System.err.println("Oops, could not read " + path + ".");
+            }
+        }
+
+        // one FILE_DATA packet per chunkSize bytes of data, each a view into data rather than a copy
+        private void AddFileData(ByteBuffer data, int chunkSize, List<Packet> packets) {
+            for (int offset = 0; offset < data.limit(); offset += chunkSize) {
+                int length = Math.min(chunkSize, data.limit() - offset);
+
+                ByteBuffer chunk = data.duplicate();
+                chunk.position(offset);
+                chunk.limit(offset + length);
+
+                packets.add(new Packet(chunk.slice(), offset, sendNextSeqNum++, id, sourcePort, peerPort));
+            }
+        }
+
+        // chop a message into characters and send each character as a packet
+        private void SendMessage(final String message) {
+            List<Packet> packets = new ArrayList<Packet>();
+            for (char c : message.toCharArray()) {
+                Packet payload = new Packet(Character.toString(c), sendNextSeqNum++, id, sourcePort, peerPort);
+                packets.add(payload);
+            }
+            SendPackets(packets, null);
+        }
+
+        // sends or queues a set of packets, the window and timers take care
+        // of the rest until they are all ACKed, then onComplete (if any) runs
+        private void SendPackets(List<Packet> packets, Runnable onComplete) {
+
+            if (inFlightPacketTimes.isEmpty() && queuedPackets.isEmpty()) {
+                sendStartTime = Now();
+            }
+
+            // work out the parity before anything is sent, it goes out right behind its block
+            if (options.FecBlockSize > 0) {
+                AddParity(packets);
+            }
+
+            // send or queue all of the packets
+            for (Packet payload : packets) {
+                sendPackets.put(payload.Number, payload);
+
+                // if the window is full, save it for later
+                if (!queuedPackets.isEmpty() || payload.Number >= SendWindowEnd()) {
+                    queuedPackets.addLast(payload.Number);
+                }
+                else {
+                    SendOnePacket(payload);
+                }
+            }
+
+            if (onComplete != null) {
+                if (packets.isEmpty()) {
+                    onComplete.run();
+                }
+                else {
+                    sendCompletions.add(new SendCompletion(packets.get(packets.size() - 1).Number, onComplete));
+                }
+            }
+
+            ProbeClosedWindow();
+        }
+
+        // one parity packet for every FecBlockSize packets, the last block may be shorter
+        // the parity is the XOR of the packets in binary format (whatever format we send in),
+        // zero padded to the longest one,
+        // along with the XOR of their lengths so the receiver knows where a rebuilt packet ends
+        private void AddParity(List<Packet> packets) {
+            for (int start = 0; start < packets.size(); start += options.FecBlockSize) {
+                int end = Math.min(start + options.FecBlockSize, packets.size());
+
+                byte[] parity = new byte[0];
+                int length = 0;
+                for (int i = start; i < end; i++) {
+                    byte[] bytes = packets.get(i).Encode();
+                    if (bytes.length > parity.length) {
+                        parity = Arrays.copyOf(parity, bytes.length);
+                    }
+                    for (int j = 0; j < bytes.length; j++) {
+                        parity[j] ^= bytes[j];
+                    }
+                    length ^= bytes.length;
+                }
+
+                Packet block = new Packet(PacketFormat.FEC_PARITY, null, length, end - start, ByteBuffer.wrap(parity), packets.get(start).Number, id, sourcePort, peerPort);
+                pendingParity.put(packets.get(end - 1).Number, block);
+            }
+        }
+
+        public void CountLoss(boolean ack, boolean dropped) {
+            if (ack) {
+                numAcksSeen++;
+                numAcksDropped += dropped ? 1 : 0;
+            }
+            else {
+                numFilePacketsSeen++;
+                numFilePacketsDropped += dropped ? 1 : 0;
+            }
+        }
+
+        // everything we were asked to send has been ACKed
+        private void FinishSending() {
+            log.Summary(id, numPacketsSent, numRetransmissions, numFastRetransmissions, Now() - sendStartTime);
+            log.LossStats(id, numAcksDropped, numAcksSeen, true);
+            log.OtherLossStats(numOtherDropped, numOtherDecisions);
+            numAcksSeen = 0;
+            numAcksDropped = 0;
+            numPacketsSent = 0;
+            numRetransmissions = 0;
+            numFastRetransmissions = 0;
+            numParitySent = 0;
+            lossEvidence.clear();
+        }
+
+        // the retransmission timer for one transmission of a packet
+        // does nothing if the packet was ACKed or resent since then, even within the same millisecond
+        private void CheckForTimeout(int packetNum, int transmission) {
+            Integer lastSent = lastTransmission.get(packetNum);
+            if (!inFlightPacketTimes.containsKey(packetNum) || lastSent == null || lastSent != transmission) {
+                return;
+            }
+
+            // a probe into a closed window, the receiver most likely refused it rather than lost it,
+            // so keep probing but don't count it against the path
+            if (packetNum >= peerWindowEnd) {
+                SendOnePacket(sendPackets.get(packetNum));
+                return;
+            }
+
+            // a timeout means the path is congested, back off before resending
+            if (options.CongestionControl) {
+                ShrinkCongestionWindow(packetNum);
+            }
+            SendOnePacket(sendPackets.get(packetNum));
+            numRetransmissions++;
+        }
+
+        // send a packet unreliably, update it's timestamp and start its timer
+        private void SendOnePacket(final Packet payload) {
+            numPacketsSent++;
+            final int transmission = numTransmissions++;
+            lastTransmission.put(payload.Number, transmission);
+            if (options.FastRetransmitAcks > 0) {
+                lossEvidence.remove(payload.Number);
+            }
+
+            final long sentTime = Now();
+            inFlightPacketTimes.put(payload.Number, sentTime);
+            Schedule(sentTime + timeoutMs, new Runnable() {
+                @Override
+                public void run() {
+                    CheckForTimeout(payload.Number, transmission);
+                }
+            });
+
+            UnreliableSend(payload);
+            log.SendPacket(payload);
+
+            // the first time the last packet of a block goes out, so does the block's parity
+            Packet parity = pendingParity.remove(payload.Number);
+            if (parity != null) {
+                UnreliableSend(parity);
+                numParitySent++;
+            }
+        }
+    }
+
+    // send a packet unreliably, in whichever format we were told to use
+    private void UnreliableSend(Packet payload) {
+        if (options.TextFormat) {
+            UnreliableSend(payload.DestPort, payload.ToBytes());
+            return;
+        }
+
+        ByteBuffer datagram = bufferPool.Take();
+        payload.Encode(datagram);
+        SendPooled(payload.DestPort, datagram);
+    }
+
+    private void SendAck(int toPort, int stream, int packetNum, int rcvWindowEnd) {
+        if (options.TextFormat) {
+            UnreliableSend(toPort, AckFormat.Ack(packetNum, rcvWindowEnd, stream));
+            return;
+        }
+
+        ByteBuffer datagram = bufferPool.Take();
+        BinaryFormat.PutAck(datagram, stream, packetNum, rcvWindowEnd);
+        SendPooled(toPort, datagram);
+    }
+
+    private void SendSack(int toPort, int stream, int packetNum, int rcvWindowBase, BitSet received, int rcvWindowEnd) {
+        if (options.TextFormat) {
+            UnreliableSend(toPort, AckFormat.Sack(packetNum, rcvWindowBase, received, rcvWindowEnd, stream));
+            return;
+        }
+
+        ByteBuffer datagram = bufferPool.Take();
+        BinaryFormat.PutSack(datagram, stream, packetNum, rcvWindowBase, received, rcvWindowEnd);
+        SendPooled(toPort, datagram);
+    }
+
+    // send a message unreliably to a port
+    private void UnreliableSend(int toPort, String message) {
+        UnreliableSend(toPort, message.getBytes());
+    }
+
+    // send raw bytes unreliably to a port
+    private void UnreliableSend(int toPort, byte[] buffer) {
+        try {
+            // if the socket buffer is full this sends nothing, which is just another lost packet
+            channel.send(ByteBuffer.wrap(buffer), Address(toPort));
+        }
+        catch (IOException e) {
+            // swallow this, we will resend if needed
+        }
+    }
+
+    // send a datagram we've just written into a pooled buffer, then give the buffer back
+    private void SendPooled(int toPort, ByteBuffer datagram) {
+        datagram.flip();
+        try {
+            // if the socket buffer is full this sends nothing, which is just another lost packet
+            channel.send(datagram, Address(toPort));
+        }
+        catch (IOException e) {
+            // swallow this, we will resend if needed
+        }
+        bufferPool.Release(datagram);
+    }
+
+    // all communication is on the same machine, so one address per port is all we ever need
+    private InetSocketAddress Address(int port) {
+        InetSocketAddress address = addresses.get(port);
+        if (address == null) {
+            address = new InetSocketAddress(localHost, port);
+            addresses.put(port, address);
+        }
+        return address;
+    }
+
+    // throughput for printing
+    private static double MegabytesPerSecond(long numBytes, long elapsedMs) {
+        double mbPerSecond = (double)numBytes / (1024 * 1024) / (Math.max(elapsedMs, 1) / 1000.0);
+        return (double)Math.round(mbPerSecond * 1000)/1000; // round to 3 decimal places
+    }
+
+    // *********************************************
+    // ************** HELPER CLASSES ***************
+    // *********************************************
+
+    // thread that listens for user input and posts
+    // different commands to the SRNode event loop
+    private class UserListener implements Runnable {
+
+        // one reader for the life of the node, so buffered lines aren't lost between commands
+        private BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+
+        @Override
+        public void run() {
+            // accept user input until std in is closed
+            while (true) {
+
+                String userInput;
+
+                // read from std in
+                try {
+                    userInput = br.readLine();
+                } catch (IOException e) {
+                    UnrecognizedInput();
+                    continue;
+                }
+
+                // nothing more will ever come in, keep receiving on the other thread
+                if (userInput == null) {
+                    return;
+                }
+
+                // "stream <id> <command>" runs the command on that stream instead of stream 0
+                int streamId = 0;
+                if (userInput.startsWith("stream ")) {
+                    String[] parts = userInput.split(" ", 3);
+                    try {
+                        streamId = Integer.parseInt(parts[1]);
+                    }
+                    catch (NumberFormatException e) {
+                        UnrecognizedInput();
+                        continue;
+                    }
+                    if (streamId < 0 || parts.length < 3) {
+                        UnrecognizedInput();
+                        continue;
+                    }
+                    userInput = parts[2];
+                }
+
+                // now make sure it is a valid "send" or "sendfile" command, and parse out the argument
+
+                int commandSeparator = userInput.indexOf(' ');
+
+                if (commandSeparator < 0) {
+                    UnrecognizedInput();
+                    continue;
+                }
+
+                String command = userInput.substring(0, commandSeparator);
+                final String argument = userInput.substring(commandSeparator + 1);
+                final int id = streamId;
+
+                if ("send".equals(command)) {
+                    Post(new Runnable() {
+                        @Override
+                        public void run() {
+                            GetStream(destPort, id).SendMessage(argument);
+                        }
+                    });
+                }
+                else if ("sendfile".equals(command)) {
+                    Post(new Runnable() {
+                        @Override
+                        public void run() {
+                            GetStream(destPort, id).SendFile(argument.trim());
+                        }
+                    });
+                }
+                else {
+                    UnrecognizedInput();
+                }
+            }
+        }
+
+        private void UnrecognizedInput(){
+            System.err.println("Oops, I don't recognize that command, try again.");
+        }
+
+    }
+
+    // runs a sender and a receiver over loopback in this process, once for every combination
+    // of window size, timeout, loss rate and payload size, and prints one CSV row per run
+    // every run gets fresh nodes and the same loss seeds, so rows only differ by their parameters
+    private static class Benchmark {
+
+        public static final String USAGE = "[window <n,...>] [timeout <ms,...>] [loss <rate,...>] [payload <bytes,...>] [fec <k,...>] [reader <KB/s,...>] [bytes <total-bytes>] [port <n>] [limit <seconds>] [SRNode options...]";
+
+        public static final String CSV_HEADER = "window,timeout_ms,loss,payload_bytes,fec,reader_kb_per_s,total_bytes,completed,completion_ms,goodput_mb_per_s,packets_sent,retransmissions,retransmission_ratio,parity_sent,rebuilt";
+
+        // what we sweep when nothing else is given
+        private int[] windowSizes = { 5, 10, 20, 50 };
+        private int[] timeouts = { 50, 200 };
+        private double[] lossRates = { 0, 0.1, 0.2 };
+        private int[] payloadSizes = { 500, PacketFormat.FILE_CHUNK_SIZE };
+        private int[] fecBlockSizes = { 0 }; // 0 is plain SR
+        private int[] readerRates = { NO_READER }; // 0 is a reader that keeps up as best it can
+
+        // nobody reads on the receiver, it just ACKs and drops the data
+        private static final int NO_READER = -1;
+
+        private int totalBytes = 100000;
+        private int port = 45000;
+        private int limitSeconds = 60;
+
+        // everything we don't know is handed to every node as SRNode options,
+        // starting with a fixed seed so the whole sweep can be repeated
+        private List<String> nodeArgs = new ArrayList<String>(Arrays.asList("seed", "1"));
+
+        public static void Main(String[] args) {
+            Benchmark benchmark = new Benchmark();
+            try {
+                benchmark.Parse(args);
+                Options.Parse(benchmark.NodeArgs(), 0); // check these now, rather than on the first run
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+                System.err.println("Usage: SRNode bench " + USAGE);
+                return;
+            }
+
+            try {
+                benchmark.Run();
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void Parse(String[] args) throws IllegalArgumentException {
+            for (int i = 0; i < args.length; i++) {
+                boolean hasValue = i + 1 < args.length;
+
+                if ("window".equals(args[i]) && hasValue) {
+                    windowSizes = ParseInts(args[++i], 1, Integer.MAX_VALUE);
+                }
+                else if ("timeout".equals(args[i]) && hasValue) {
+                    timeouts = ParseInts(args[++i], 1, Integer.MAX_VALUE);
+                }
+                else if ("loss".equals(args[i]) && hasValue) {
+                    String[] values = args[++i].split(",");
+                    lossRates = new double[values.length];
+                    for (int j = 0; j < values.length; j++) {
+                        lossRates[j] = Double.parseDouble(values[j]);
+                        if (lossRates[j] < 0 || lossRates[j] >= 1) {
+                            throw new IllegalArgumentException("Arguments outside valid range.");
+                        }
+                    }
+                }
+                else if ("payload".equals(args[i]) && hasValue) {
+                    payloadSizes = ParseInts(args[++i], 1, PacketFormat.FILE_CHUNK_SIZE);
+                }
+                else if ("fec".equals(args[i]) && hasValue) {
+                    fecBlockSizes = ParseInts(args[++i], 0, Integer.MAX_VALUE);
+                }
+                else if ("reader".equals(args[i]) && hasValue) {
+                    readerRates = ParseInts(args[++i], 0, Integer.MAX_VALUE);
+                }
+                else if ("bytes".equals(args[i]) && hasValue) {
+                    totalBytes = ParseInts(args[++i], 1, Integer.MAX_VALUE)[0];
+                }
+                else if ("port".equals(args[i]) && hasValue) {
+                    port = ParseInts(args[++i], 1, 65534)[0];
+                }
+                else if ("limit".equals(args[i]) && hasValue) {
+                    limitSeconds = ParseInts(args[++i], 1, Integer.MAX_VALUE)[0];
+                }
+                else {
+                    nodeArgs.add(args[i]);
+                }
+            }
+        }
+
+        private static int[] ParseInts(String list, int min, int max) throws IllegalArgumentException {
+            String[] values = list.split(",");
+            int[] parsed = new int[values.length];
+            for (int i = 0; i < values.length; i++) {
+                parsed[i] = Integer.parseInt(values[i]);
+                if (parsed[i] < min || parsed[i] > max) {
+                    throw new IllegalArgumentException("Arguments outside valid range.");
+                }
+            }
+            return parsed;
+        }
+
+        private String[] NodeArgs() {
+            return nodeArgs.toArray(new String[nodeArgs.size()]);
+        }
+
+        private void Run() throws IOException, InterruptedException {
+
+            // the same bytes for every run, contents don't matter
+            ByteBuffer data = ByteBuffer.allocate(totalBytes);
+            new Random(1).nextBytes(data.array());
+
+            // one throwaway run so the first row isn't paying for class loading and the JIT
+            RunOnce(windowSizes[0], timeouts[0], 0, payloadSizes[0], fecBlockSizes[0], readerRates[0], data);
+
+            System.out.println(CSV_HEADER);
+
+            for (int windowSize : windowSizes) {
+                for (int timeoutMs : timeouts) {
+                    for (double lossRate : lossRates) {
+                        for (int payloadSize : payloadSizes) {
+                            for (int fecBlockSize : fecBlockSizes) {
+                                for (int readerRate : readerRates) {
+                                    System.out.println(RunOnce(windowSize, timeoutMs, lossRate, payloadSize, fecBlockSize, readerRate, data));
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        // send data once from a fresh sender to a fresh receiver and return the CSV row
+        private String RunOnce(int windowSize, int timeoutMs, double lossRate, final int payloadSize, int fecBlockSize, int readerRate, final ByteBuffer data) throws IOException, InterruptedException {
+
+            // separate options for each node, so each gets its own loss seed
+            Options senderOptions = Options.Parse(NodeArgs(), 0);
+            Options receiverOptions = Options.Parse(NodeArgs(), 0);
+            senderOptions.LogLevel = EventLog.NONE;
+            receiverOptions.LogLevel = EventLog.NONE;
+            receiverOptions.Seed = senderOptions.Seed ^ 0x9E3779B97F4A7C15L;
+            senderOptions.FecBlockSize = fecBlockSize;
+            receiverOptions.FecBlockSize = fecBlockSize;
+
+            final SRNode sender = new SRNode(port, port + 1, windowSize, timeoutMs, lossRate, senderOptions);
+            final SRNode receiver = new SRNode(port + 1, port, windowSize, timeoutMs, lossRate, receiverOptions);
+
+            Thread senderLoop = StartEventLoop(sender);
+            Thread receiverLoop = StartEventLoop(receiver);
+
+            // filled in on the sender's event loop once everything is ACKed,
+            // and by the reader once it has read everything, if there is one
+            final CountDownLatch done = new CountDownLatch(readerRate == NO_READER ? 1 : 2);
+            final long[] totals = new long[4]; // packets, packets sent, retransmissions, parity sent
+            final long startTime = System.nanoTime();
+            final long[] endTime = new long[2]; // sender, reader
+
+            Thread readerThread = null;
+            if (readerRate != NO_READER) {
+                readerThread = StartReader(receiver.Open(port, 0), readerRate, startTime, endTime, done);
+            }
+
+            sender.Post(new Runnable() {
+                @Override
+                public void run() {
+                    final Stream stream = sender.GetStream(receiver.sourcePort, 0);
+
+                    List<Packet> packets = new ArrayList<Packet>();
+                    stream.AddFileData(data, payloadSize, packets);
+                    totals[0] = packets.size();
+
+                    stream.SendPackets(packets, new Runnable() {
+                        @Override
+                        public void run() {
+                            endTime[0] = System.nanoTime();
+                            totals[1] = stream.numPacketsSent;
+                            totals[2] = stream.numRetransmissions;
+                            totals[3] = stream.numParitySent;
+                            done.countDown();
+                        }
+                    });
+                }
+            });
+
+            boolean completed = done.await(limitSeconds, TimeUnit.SECONDS);
+
+            sender.Close();
+            receiver.Close();
+            senderLoop.join();
+            receiverLoop.join();
+            if (readerThread != null) {
+                readerThread.interrupt();
+                readerThread.join();
+            }
+
+            String reader = readerRate == NO_READER ? "" : Integer.toString(readerRate);
+            String row = windowSize + "," + timeoutMs + "," + lossRate + "," + payloadSize + "," + fecBlockSize + "," + reader + "," + totalBytes + "," + completed;
+            if (!completed) {
+                return row + ",,,,,,,";
+            }
+
+            // both event loops are done, so the receiver's counts are safe to read here
+            int numRebuilt = receiver.GetStream(sender.sourcePort, 0).numRebuilt;
+
+            double elapsedMs = (Math.max(endTime[0], endTime[1]) - startTime) / 1e6;
+            double goodput = totalBytes / (1024.0 * 1024) / (elapsedMs / 1000);
+            double retransmissionRatio = (double)totals[2] / totals[0];
+
+            return row + "," + Round(elapsedMs) + "," + Round(goodput) + "," + totals[1] + "," + totals[2] + "," + Round(retransmissionRatio) + "," + totals[3] + "," + numRebuilt;
+        }
+
+        // read everything the receiver delivers at no more than the given rate, in KB/s (0 is no limit)
+        private Thread StartReader(final InputStream input, final int rate, final long startTime, final long[] endTime, final CountDownLatch done) {
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[4096];
+                    long numRead = 0;
+                    try {
+                        while (numRead < totalBytes) {
+                            int n = input.read(buffer, 0, buffer.length);
+                            if (n < 0) {
+                                return;
+                            }
+                            numRead += n;
+
+                            // sleep off anything we read ahead of the rate
+                            if (rate > 0) {
+                                long dueNs = numRead * 1000000000L / (rate * 1024L);
+                                long aheadMs = (dueNs - (System.nanoTime() - startTime)) / 1000000;
+                                if (aheadMs > 0) {
+                                    Thread.sleep(aheadMs);
+                                }
+                            }
+                        }
+                        endTime[1] = System.nanoTime();
+                        done.countDown();
+                    }
+                    catch (InterruptedException e) {
+                        // the run is over
+                    }
+                    catch (IOException e) {
+                        // interrupted while blocked in read, the run is over
+                    }
+                }
+            });
+            reader.start();
+            return reader;
+        }
+
+        private static Thread StartEventLoop(final SRNode node) {
+            Thread loop = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    node.RunEventLoop();
+                }
+            });
+            loop.start();
+            return loop;
+        }
+
+        private static double Round(double value) {
+            return (double)Math.round(value * 1000)/1000; // round to 3 decimal places
+        }
+    }
+
+    // everything SRNode prints, recorded by the event loop into a fixed ring of
+    // plain fields (no strings built, no clock objects) and turned into text on
+    // a background writer thread, in exactly the format the Printing classes define
+    // only the event loop thread records, and only the writer thread drains
+    private static class EventLog implements Runnable {
+
+        // verbosity levels, each includes everything above it
+        public static final int NONE = 0;
+        public static final int SUMMARY = 1; // totals, file transfers and the cwnd trace
+        public static final int ALL = 2;     // every packet and ACK
+
+        // event types
+        private static final int SEND_PACKET = 0;
+        private static final int ACK1 = 1;
+        private static final int ACK2 = 2;
+        private static final int CWND = 3;
+        private static final int SUMMARY_LINE = 4;
+        private static final int FILE_SENT = 5;
+        private static final int RECEIVE1 = 6;
+        private static final int RECEIVE2 = 7;
+        private static final int SEND_ACK = 8;
+        private static final int DISCARD = 9;
+        private static final int FILE_RECEIVED = 10;
+        private static final int LOSS_STATS = 11;
+        private static final int REBUILT = 12;
+        private static final int OTHER_LOSS_STATS = 13;
+
+        // must be a power of 2
+        private static final int CAPACITY = 1 << 16;
+
+        private final int level;
+
+        // one slot per event, indexed by sequence & (CAPACITY - 1)
+        private final long[] times = new long[CAPACITY];
+        private final int[] streams = new int[CAPACITY];
+        private final int[] types = new int[CAPACITY];
+        private final int[] packetNums = new int[CAPACITY];
+        private final long[] args1 = new long[CAPACITY];
+        private final long[] args2 = new long[CAPACITY];
+        private final long[] args3 = new long[CAPACITY];
+        private final Object[] objects = new Object[CAPACITY];
+
+        // next sequence to record, and next sequence to print
+        private volatile long head;
+        private volatile long tail;
+
+        // the writer parks when the ring is empty, and the recorder (the event loop) when it's full
+        // each sets its flag and looks at the ring again before it parks, so the other side can't miss it
+        private volatile Thread writer;
+        private volatile Thread recorder;
+        private volatile boolean writerParked;
+        private volatile boolean recorderParked;
+
+        public EventLog(int level) {
+            this.level = level;
+        }
+
+        public static int ParseLevel(String level) throws IllegalArgumentException {
+            if ("none".equals(level)) {
+                return NONE;
+            }
+            if ("summary".equals(level)) {
+                return SUMMARY;
+            }
+            if ("all".equals(level)) {
+                return ALL;
+            }
+            throw new IllegalArgumentException("Unknown log level " + level);
+        }
+
+        public void Start() {
+            if (level == NONE) {
+                return;
+            }
+            writer = new Thread(this);
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        public void SendPacket(Packet payload) {
+            if (level >= ALL) {
+                Record(payload.Stream, SEND_PACKET, payload.Number, 0, 0, 0, payload);
+            }
+        }
+
+        public void Ack1(int stream, int packetNum) {
+            if (level >= ALL) {
+                Record(stream, ACK1, packetNum, 0, 0, 0, null);
+            }
+        }
+
+        public void Ack2(int stream, int packetNum, int windowStart, int windowEnd) {
+            if (level >= ALL) {
+                Record(stream, ACK2, packetNum, windowStart, windowEnd, 0, null);
+            }
+        }
+
+        public void CongestionWindow(int stream, double cwnd, double ssthresh) {
+            if (level >= SUMMARY) {
+                Record(stream, CWND, 0, Double.doubleToLongBits(cwnd), Double.doubleToLongBits(ssthresh), 0, null);
+            }
+        }
+
+        public void Summary(int stream, int numPacketsSent, int numRetransmissions, int numFastRetransmissions, long elapsedMs) {
+            if (level >= SUMMARY) {
+                Record(stream, SUMMARY_LINE, numPacketsSent, numRetransmissions, numFastRetransmissions, elapsedMs, null);
+            }
+        }
+
+        public void FileSent(int stream, String path, long numBytes, long elapsedMs) {
+            if (level >= SUMMARY) {
+                Record(stream, FILE_SENT, 0, numBytes, elapsedMs, 0, path);
+            }
+        }
+
+        public void Receive1(Packet payload) {
+            if (level >= ALL) {
+                Record(payload.Stream, RECEIVE1, payload.Number, 0, 0, 0, payload);
+            }
+        }
+
+        public void Receive2(Packet payload, int windowStart, int windowEnd) {
+            if (level >= ALL) {
+                Record(payload.Stream, RECEIVE2, payload.Number, windowStart, windowEnd, 0, payload);
+            }
+        }
+
+        public void SendAck(int stream, int packetNum) {
+            if (level >= ALL) {
+                Record(stream, SEND_ACK, packetNum, 0, 0, 0, null);
+            }
+        }
+
+        public void Discard(Packet payload) {
+            if (level >= ALL) {
+                Record(payload.Stream, DISCARD, payload.Number, 0, 0, 0, payload);
+            }
+        }
+
+        public void FileReceived(int stream, String path, long numBytes, long elapsedMs) {
+            if (level >= SUMMARY) {
+                Record(stream, FILE_RECEIVED, 0, numBytes, elapsedMs, 0, path);
+            }
+        }
+
+        public void LossStats(int stream, long numDropped, long numDecisions, boolean acks) {
+            if (level >= SUMMARY) {
+                Record(stream, LOSS_STATS, 0, numDropped, numDecisions, acks ? 1 : 0, null);
+            }
+        }
+
+        public void OtherLossStats(long numDropped, long numDecisions) {
+            if (level >= SUMMARY) {
+                Record(0, OTHER_LOSS_STATS, 0, numDropped, numDecisions, 0, null);
+            }
+        }
+
+        public void Rebuilt(Packet payload) {
+            if (level >= ALL) {
+                Record(payload.Stream, REBUILT, payload.Number, 0, 0, 0, payload);
+            }
+        }
+
+        private void Record(int stream, int type, int packetNum, long arg1, long arg2, long arg3, Object object) {
+
+            // if the writer has fallen a whole ring behind, wait for it to free a slot rather than lose output
+            while (head - tail >= CAPACITY) {
+                recorder = Thread.currentThread();
+                recorderParked = true;
+                if (head - tail >= CAPACITY) {
+                    LockSupport.park(this);
+                }
+                recorderParked = false;
+            }
+
+            int slot = (int)(head & (CAPACITY - 1));
+            times[slot] = System.currentTimeMillis();
+            streams[slot] = stream;
+            types[slot] = type;
+            packetNums[slot] = packetNum;
+            args1[slot] = arg1;
+            args2[slot] = arg2;
+            args3[slot] = arg3;
+            objects[slot] = object;
+
+            // publishes the slot to the writer, and wakes it if the ring was empty
+            head++;
+            if (writerParked) {
+                LockSupport.unpark(writer);
+            }
+        }
+
+        // the writer thread, turns events into text and writes them out in batches
+        @Override
+        public void run() {
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+            StringBuilder line = new StringBuilder();
+
+            while (true) {
+
+                // nothing to do, write out what we have and wait for the next event
+                if (tail == head) {
+                    try {
+                        out.flush();
+                    }
+                    catch (IOException e) {
+                        // swallow this, nowhere else to print it
+                    }
+                    writerParked = true;
+                    if (tail == head) {
+                        LockSupport.park(this);
+                    }
+                    writerParked = false;
+                    continue;
+                }
+
+                int slot = (int)(tail & (CAPACITY - 1));
+                line.setLength(0);
+                Format(line, slot);
+                objects[slot] = null;
+
+                // frees the slot for the event loop, and wakes it if it was waiting for one
+                tail++;
+                if (recorderParked) {
+                    LockSupport.unpark(recorder);
+                }
+
+                try {
+                    out.append(line);
+                }
+                catch (IOException e) {
+                    // swallow this, nowhere else to print it
+                }
+            }
+        }
+
+        private void Format(StringBuilder out, int slot) {
+            long timestamp = times[slot];
+            int packetNum = packetNums[slot];
+            Object object = objects[slot];
+
+            switch (types[slot]) {
+                case SEND_PACKET:
+                    SenderPrinting.PrintSendPacket(out, timestamp, packetNum, ((Packet)object).Label());
+                    break;
+                case ACK1:
+                    SenderPrinting.PrintAck1(out, timestamp, packetNum);
+                    break;
+                case ACK2:
+                    SenderPrinting.PrintAck2(out, timestamp, packetNum, (int)args1[slot], (int)args2[slot]);
+                    break;
+                case CWND:
+                    SenderPrinting.PrintCongestionWindow(out, timestamp, Double.longBitsToDouble(args1[slot]), Double.longBitsToDouble(args2[slot]));
+                    break;
+                case SUMMARY_LINE:
+                    SenderPrinting.PrintSummary(out, timestamp, packetNum, (int)args1[slot], (int)args2[slot], args3[slot]);
+                    break;
+                case FILE_SENT:
+                    SenderPrinting.PrintFileSent(out, timestamp, (String)object, args1[slot], args2[slot]);
+                    break;
+                case RECEIVE1:
+                    ReceiverPrinting.PrintReceive1(out, timestamp, packetNum, ((Packet)object).Label());
+                    break;
+                case RECEIVE2:
+                    ReceiverPrinting.PrintReceive2(out, timestamp, packetNum, ((Packet)object).Label(), (int)args1[slot], (int)args2[slot]);
+                    break;
+                case SEND_ACK:
+                    ReceiverPrinting.PrintSendAck(out, timestamp, packetNum);
+                    break;
+                case DISCARD:
+                    ReceiverPrinting.PrintDiscardPacket(out, timestamp, packetNum, ((Packet)object).Label());
+                    break;
+                case FILE_RECEIVED:
+                    ReceiverPrinting.PrintFileReceived(out, timestamp, (String)object, args1[slot], args2[slot]);
+                    break;
+                case LOSS_STATS:
+                    ReceiverPrinting.PrintLossStats(out, timestamp, args1[slot], args2[slot], args3[slot] != 0);
+                    break;
+                case OTHER_LOSS_STATS:
+                    ReceiverPrinting.PrintOtherLossStats(out, timestamp, args1[slot], args2[slot]);
+                    break;
+                case REBUILT:
+                    ReceiverPrinting.PrintRebuiltPacket(out, timestamp, packetNum, ((Packet)object).Label());
+                    break;
+            }
+
+            // other streams are marked right after the timestamp, stream 0 prints exactly as before
+            if (streams[slot] != 0) {
+                out.insert(out.indexOf("] ") + 2, "stream " + streams[slot] + " ");
+            }
+        }
+    }
+
+    // the in-order data of one stream, see SRNode.Open
+    // the event loop adds each packet's data as it's delivered, and an application reads it
+    // on its own thread, blocking until there is something to read
+    private static class StreamInput extends InputStream {
+
+        // how many packets' worth of data we hold at most, the size of the receive window
+        private final int capacity;
+
+        // runs when the reader has made enough room that the sender should hear about it
+        private final Runnable onSpace;
+
+        private ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+        private int chunkPosition;
+        private boolean throttled;
+        private boolean closed;
+
+        public StreamInput(int capacity, Runnable onSpace) {
+            this.capacity = capacity;
+            this.onSpace = onSpace;
+        }
+
+        // one delivered packet's data, from the event loop
+        public synchronized void Add(byte[] data) {
+            if (closed) {
+                return; // nobody will read it, so don't let it hold up the window either
+            }
+
+            chunks.addLast(data);
+            if (chunks.size() > capacity / 2) {
+                throttled = true;
+            }
+            notifyAll();
+        }
+
+        // how many packets' worth of data haven't been read yet
+        public synchronized int NumUnread() {
+            return chunks.size();
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            while (chunks.isEmpty()) {
+                if (closed) {
+                    return -1;
+                }
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+
+            int numRead = 0;
+            while (numRead < len && !chunks.isEmpty()) {
+                byte[] chunk = chunks.peekFirst();
+                int n = Math.min(len - numRead, chunk.length - chunkPosition);
+                System.arraycopy(chunk, chunkPosition, b, off + numRead, n);
+                numRead += n;
+                chunkPosition += n;
+
+                if (chunkPosition == chunk.length) {
+                    chunks.pollFirst();
+                    chunkPosition = 0;
+                }
+            }
+
+            // the window has opened back up to half, tell the sender now instead of waiting for it to probe
+            if (throttled && chunks.size() <= capacity / 2) {
+                throttled = false;
+                onSpace.run();
+            }
+
+            return numRead;
+        }
+
+        @Override
+        public synchronized int available() {
+            int numBytes = -chunkPosition;
+            for (byte[] chunk : chunks) {
+                numBytes += chunk.length;
+            }
+            return Math.max(numBytes, 0);
+        }
+
+        // stop reading, whatever hasn't been read yet is dropped and the window opens back up
+        @Override
+        public synchronized void close() {
+            closed = true;
+            chunks.clear();
+            chunkPosition = 0;
+            notifyAll();
+            onSpace.run();
+        }
+    }
+
+    // decides which received datagrams to "lose", one per link
+    // independent (Bernoulli) losses by default, or with a mean burst length, a
+    // two state Gilbert model: the link goes bad and drops everything until it goes
+    // good again, with the chance of going bad picked so the average loss rate is the same
+    // uses its own seedable SplitMix64 generator, so runs can be repeated exactly
+    private static class LossModel {
+
+        private volatile double lossRate;
+        private final double meanBurstLength;
+        private long state;
+        private boolean inBurst;
+
+        public LossModel(double lossRate, double meanBurstLength, long seed) {
+            this.lossRate = lossRate;
+            this.meanBurstLength = meanBurstLength;
+            this.state = seed;
+        }
+
+        public void SetLossRate(double lossRate) {
+            this.lossRate = lossRate;
+        }
+
+        public boolean ShouldDrop() {
+            boolean drop;
+
+            if (meanBurstLength < 1 || lossRate == 0) {
+                drop = NextDouble() < lossRate;
+            }
+            else {
+                // leave a burst with chance 1/length, so bursts are length long on average
+                double leaveBurst = 1 / meanBurstLength;
+                double enterBurst = lossRate * leaveBurst / (1 - lossRate);
+
+                inBurst = inBurst ? NextDouble() >= leaveBurst : NextDouble() < enterBurst;
+                drop = inBurst;
+            }
+
+            return drop;
+        }
+
+        // uniform in [0, 1)
+        private double NextDouble() {
+            state += 0x9E3779B97F4A7C15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            z = z ^ (z >>> 31);
+            return (z >>> 11) * 0x1.0p-53;
+        }
+    }
+
+    // something for the event loop to run once its deadline passes
+    private static class ScheduledTask implements Comparable<ScheduledTask> {
+        public final long Deadline;
+        public final Runnable Action;
+
+        public ScheduledTask(long deadline, Runnable action) {
+            Deadline = deadline;
+            Action = action;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            return Long.compare(Deadline, other.Deadline);
+        }
+    }
+
+    // something to run once every packet up to LastPacketNum has been ACKed
+    private static class SendCompletion {
+        public final int LastPacketNum;
+        public final Runnable OnComplete;
+
+        public SendCompletion(int lastPacketNum, Runnable onComplete) {
+            LastPacketNum = lastPacketNum;
+            OnComplete = onComplete;
+        }
+    }
+
+    // optional flags given after the required command line arguments
+    private static class Options {
+
+        // adjust the send window at runtime with slow start and AIMD
+        public boolean CongestionControl;
+
+        // ACK with our whole receive window instead of a single packet
+        public boolean SelectiveAck;
+
+        // hold back ACKs for in-order packets, up to this long or this many packets
+        public int DelayAckMs;
+        public int DelayAckPackets;
+
+        // resend an unACKed packet once this many later packets have been ACKed
+        public int FastRetransmitAcks;
+
+        // send a parity packet after every this many packets, and use the ones we receive
+        public int FecBlockSize;
+
+        // send packets and ACKs in the readable text format instead of binary, for debugging
+        public boolean TextFormat;
+
+        // how much to print, see EventLog
+        public int LogLevel = EventLog.ALL;
+
+        // the simulated loss, see LossModel
+        public long Seed = System.nanoTime();
+        public double MeanBurstLength;
+
+        public static Options Parse(String[] args, int start) throws IllegalArgumentException {
+            Options options = new Options();
+
+            for (int i = start; i < args.length; i++) {
+                if ("cc".equals(args[i])) {
+                    options.CongestionControl = true;
+                }
+                else if ("sack".equals(args[i])) {
+                    options.SelectiveAck = true;
+                }
+                else if ("text".equals(args[i])) {
+                    options.TextFormat = true;
+                }
+                else if ("delayack".equals(args[i]) && i + 2 < args.length) {
+                    options.DelayAckMs = Integer.parseInt(args[++i]);
+                    options.DelayAckPackets = Integer.parseInt(args[++i]);
+                    if (options.DelayAckMs <= 0 || options.DelayAckPackets <= 0) {
+                        throw new IllegalArgumentException("Arguments outside valid range.");
+                    }
+                    // one delayed ACK has to cover several packets, so it must be a SACK
+                    options.SelectiveAck = true;
+                }
+                else if ("fastrtx".equals(args[i]) && i + 1 < args.length) {
+                    options.FastRetransmitAcks = Integer.parseInt(args[++i]);
+                    if (options.FastRetransmitAcks <= 0) {
+                        throw new IllegalArgumentException("Arguments outside valid range.");
+                    }
+                }
+                else if ("fec".equals(args[i]) && i + 1 < args.length) {
+                    options.FecBlockSize = Integer.parseInt(args[++i]);
+                    if (options.FecBlockSize <= 0) {
+                        throw new IllegalArgumentException("Arguments outside valid range.");
+                    }
+                }
+                else if ("seed".equals(args[i]) && i + 1 < args.length) {
+                    options.Seed = Long.parseLong(args[++i]);
+                }
+                else if ("burst".equals(args[i]) && i + 1 < args.length) {
+                    options.MeanBurstLength = Double.parseDouble(args[++i]);
+                    if (options.MeanBurstLength < 1) {
+                        throw new IllegalArgumentException("Arguments outside valid range.");
+                    }
+                }
+                else if ("log".equals(args[i]) && i + 1 < args.length) {
+                    options.LogLevel = EventLog.ParseLevel(args[++i]);
+                }
+                else {
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+
+            return options;
+        }
+    }
+
+    // defines the contents of ACK packets
+    private static class AckFormat {
+
+        public static final String ACK_PREFIX = "ACK";
+        public static final String SACK_PREFIX = "SACK";
+
+        // both ACK formats end with the first packet number the receiver has no room for,
+        // then the stream id, which is left off for stream 0
+
+        public static String Ack(int packetNum, int rcvWindowEnd, int stream) {
+            // ACK,<packet-num>,<receiver-window-end>[,<stream>]
+            return ACK_PREFIX + "," + packetNum + "," + rcvWindowEnd + StreamSuffix(stream);
+        }
+
+        public static String Sack(int packetNum, int rcvWindowBase, BitSet received, int rcvWindowEnd, int stream) {
+            // SACK,<packet-num>,<receiver-window-base>,<bitmap>,<receiver-window-end>[,<stream>]
+            // the bitmap is hex, each digit covers 4 packets starting at the window base,
+            // lowest packet in the lowest bit, so "5" means base+0 and base+2 were received
+            StringBuilder bitmap = new StringBuilder();
+            for (int i = 0; i < received.length(); i += 4) {
+                int digit = 0;
+                for (int bit = 0; bit < 4; bit++) {
+                    if (received.get(i + bit)) {
+                        digit |= 1 << bit;
+                    }
+                }
+                bitmap.append(Character.forDigit(digit, 16));
+            }
+            return SACK_PREFIX + "," + packetNum + "," + rcvWindowBase + "," + bitmap + "," + rcvWindowEnd + StreamSuffix(stream);
+        }
+
+        private static String StreamSuffix(int stream) {
+            return stream == 0 ? "" : "," + stream;
+        }
+
+        public static BitSet ParseBitmap(String bitmap) {
+            BitSet received = new BitSet();
+            for (int i = 0; i < bitmap.length(); i++) {
+                int digit = Character.digit(bitmap.charAt(i), 16);
+                if (digit < 0) {
+                    throw new IllegalArgumentException("Invalid SACK bitmap " + bitmap);
+                }
+                for (int bit = 0; bit < 4; bit++) {
+                    if ((digit & (1 << bit)) != 0) {
+                        received.set(i * 4 + bit);
+                    }
+                }
+            }
+            return received;
+        }
+    }
+
+    // defines the text format of data packets, and what kinds of packets there are
+    private static class PacketFormat {
+
+        // packets on a stream other than 0 start with <stream>. in front of all of these
+        public static final char STREAM_SEPARATOR = '.';
+
+        // the character after the packet number says what the packet carries
+        public static final char TEXT = '_';        // <packet-num>_<character>
+        public static final char FILE_START = '@';  // <packet-num>@<file-size>,<file-name>
+        public static final char FILE_DATA = ':';   // <packet-num>:<offset>,<bytes>
+        public static final char FEC_PARITY = '^';  // <first-packet-num>^<num-packets>,<length>,<bytes>
+
+        // leave room for the packet number and offset in front of the file data
+        public static final int MAX_DATAGRAM_SIZE = 1500;
+        public static final int FILE_CHUNK_SIZE = 1400;
+
+        public static String FileStart(long fileSize, String path) {
+            return fileSize + "," + Paths.get(path).getFileName();
+        }
+
+        public static String Header(int stream, int number, char kind) {
+            if (stream == 0) {
+                return number + "" + kind;
+            }
+            return stream + "" + STREAM_SEPARATOR + number + kind;
+        }
+    }
+
+    // an individual packet to be sent with UDP
+    // on the wire it is either binary (see BinaryFormat) or text (see PacketFormat)
+    private class Packet {
+        public final int SourcePort;
+        public final int DestPort;
+        public final int Stream;
+        public final int Number;
+        public final char Kind;
+
+        // typed text or file info
+        public final String Data;
+
+        // for FILE_DATA, where the bytes go in the file
+        // for FEC_PARITY, the XOR of the lengths of the packets it covers
+        public final long Offset;
+
+        // for FEC_PARITY, how many packets it covers, starting at Number
+        public final int BlockSize;
+
+        // for FILE_DATA and FEC_PARITY, the bytes themselves, never copied until they're sent or written
+        // a view into the mapped file when sending, and into the datagram it arrived in when receiving
+        private final ByteBuffer body;
+
+        // the pooled buffer a binary packet was received into, see Release
+        private ByteBuffer datagram;
+
+        public Packet(String data, int number, int stream, int sourcePort, int destPort) {
+            this(PacketFormat.TEXT, data, number, stream, sourcePort, destPort);
+        }
+
+        public Packet(char kind, String data, int number, int stream, int sourcePort, int destPort) {
+            this(kind, data, 0, 0, null, number, stream, sourcePort, destPort);
+        }
+
+        public Packet(ByteBuffer fileData, long offset, int number, int stream, int sourcePort, int destPort) {
+            this(PacketFormat.FILE_DATA, null, offset, 0, fileData, number, stream, sourcePort, destPort);
+        }
+
+        public Packet(char kind, String data, long offset, int blockSize, ByteBuffer body, int number, int stream, int sourcePort, int destPort) {
+            Kind = kind;
+            Data = data;
+            Offset = offset;
+            BlockSize = blockSize;
+            this.body = body;
+            Number = number;
+            Stream = stream;
+            SourcePort = sourcePort;
+            DestPort = destPort;
+        }
+
+        // binary format, the packet holds on to datagram until it is released
+        public Packet(ByteBuffer datagram, int sourcePort, int destPort) {
+            SourcePort = sourcePort;
+            DestPort = destPort;
+
+            ByteBuffer in = datagram.duplicate();
+            Kind = BinaryFormat.KindOf(in.get());
+            Stream = in.getInt();
+            Number = in.getInt();
+            int bodyLength = in.getShort() & 0xFFFF;
+            in.limit(in.position() + bodyLength);
+
+            if (Kind == PacketFormat.FILE_DATA) {
+                Offset = in.getLong();
+                BlockSize = 0;
+                Data = null;
+                body = in.slice();
+            }
+            else if (Kind == PacketFormat.FEC_PARITY) {
+                BlockSize = in.getInt();
+                Offset = in.getInt();
+                Data = null;
+                body = in.slice();
+            }
+            else {
+                Offset = 0;
+                BlockSize = 0;
+                Data = StandardCharsets.UTF_8.decode(in).toString();
+                body = null;
+            }
+
+            this.datagram = datagram;
+        }
+
+        // text format, pcktAsString must be decoded one char per byte (ISO-8859-1)
+        public Packet(String pcktAsString, int sourcePort, int destPort) {
+            SourcePort = sourcePort;
+            DestPort = destPort;
+
+            int start = 0;
+            int separator = 0;
+            while (Character.isDigit(pcktAsString.charAt(separator))) {
+                separator++;
+            }
+
+            // that was the stream, the packet number comes next
+            if (pcktAsString.charAt(separator) == PacketFormat.STREAM_SEPARATOR) {
+                Stream = Integer.parseInt(pcktAsString.substring(0, separator));
+                start = ++separator;
+                while (Character.isDigit(pcktAsString.charAt(separator))) {
+                    separator++;
+                }
+            }
+            else {
+                Stream = 0;
+            }
+
+            Number = Integer.parseInt(pcktAsString.substring(start, separator));
+            Kind = pcktAsString.charAt(separator);
+
+            String content = pcktAsString.substring(separator + 1);
+
+            if (Kind == PacketFormat.FILE_DATA) {
+                int offsetSeparator = content.indexOf(',');
+                Offset = Long.parseLong(content.substring(0, offsetSeparator));
+                BlockSize = 0;
+                Data = null;
+                body = ByteBuffer.wrap(content.substring(offsetSeparator + 1).getBytes(StandardCharsets.ISO_8859_1));
+            }
+            else if (Kind == PacketFormat.FEC_PARITY) {
+                String[] parts = content.split(",", 3);
+                BlockSize = Integer.parseInt(parts[0]);
+                Offset = Long.parseLong(parts[1]);
+                Data = null;
+                body = ByteBuffer.wrap(parts[2].getBytes(StandardCharsets.ISO_8859_1));
+            }
+            else {
+                // text is sent as UTF-8
+                Offset = 0;
+                BlockSize = 0;
+                Data = new String(content.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+                body = null;
+            }
+        }
+
+        // a view of the bytes, reading it doesn't use them up
+        public ByteBuffer Body() {
+            return body.duplicate();
+        }
+
+        // the packet is done with, so the datagram it was received into can be reused
+        // the body must not be read after this
+        public void Release() {
+            if (datagram != null) {
+                bufferPool.Release(datagram);
+                datagram = null;
+            }
+        }
+
+        // what gets printed for this packet
+        public String Label() {
+            if (Kind == PacketFormat.FILE_START) {
+                return "file " + Data;
+            }
+            if (Kind == PacketFormat.FILE_DATA) {
+                return "[" + body.remaining() + " bytes at " + Offset + "]";
+            }
+            if (Kind == PacketFormat.FEC_PARITY) {
+                return "[parity of " + BlockSize + "]";
+            }
+            return Data;
+        }
+
+        // binary format, see BinaryFormat
+        public void Encode(ByteBuffer out) {
+            byte[] text = body == null ? Data.getBytes(StandardCharsets.UTF_8) : null;
+            int bodyLength = body != null ? body.remaining() : text.length;
+            if (Kind == PacketFormat.FILE_DATA || Kind == PacketFormat.FEC_PARITY) {
+                bodyLength += 8;
+            }
+
+            BinaryFormat.PutHeader(out, BinaryFormat.TypeOf(Kind), Stream, Number, bodyLength);
+
+            if (Kind == PacketFormat.FILE_DATA) {
+                out.putLong(Offset);
+            }
+            else if (Kind == PacketFormat.FEC_PARITY) {
+                out.putInt(BlockSize);
+                out.putInt((int)Offset);
+            }
+
+            if (body != null) {
+                out.put(body.duplicate());
+            }
+            else {
+                out.put(text);
+            }
+        }
+
+        // binary format in a new array, for when we need to hold on to it
+        public byte[] Encode() {
+            ByteBuffer out = ByteBuffer.allocate(PacketFormat.MAX_DATAGRAM_SIZE);
+            Encode(out);
+            return Arrays.copyOf(out.array(), out.position());
+        }
+
+        // text format, see PacketFormat
+        public byte[] ToBytes() {
+            String header = PacketFormat.Header(Stream, Number, Kind);
+            if (Kind == PacketFormat.FILE_DATA) {
+                header += Offset + ",";
+            }
+            else if (Kind == PacketFormat.FEC_PARITY) {
+                header += BlockSize + "," + Offset + ",";
+            }
+
+            byte[] headerBytes = header.getBytes(StandardCharsets.ISO_8859_1);
+            ByteBuffer content = body != null ? Body() : ByteBuffer.wrap(Data.getBytes(StandardCharsets.UTF_8));
+
+            byte[] bytes = Arrays.copyOf(headerBytes, headerBytes.length + content.remaining());
+            content.get(bytes, headerBytes.length, content.remaining());
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return PacketFormat.Header(Stream, Number, Kind) + Label();
+        }
+    }
+
+    // defines the binary format, which is what we send unless told to use text
+    // a fixed header, then the body:
+    //   type (1 byte), stream (4 bytes), packet number (4 bytes), body length (2 bytes)
+    // every type is below any printable character, so binary is never mistaken for text
+    private static class BinaryFormat {
+
+        public static final byte TEXT = 1;          // <utf-8 text>
+        public static final byte FILE_START = 2;    // <utf-8 file size,file name>
+        public static final byte FILE_DATA = 3;     // <offset, 8 bytes><bytes>
+        public static final byte FEC_PARITY = 4;    // <num-packets, 4 bytes><length, 4 bytes><bytes>, number is the first packet
+        public static final byte ACK = 5;           // <receiver-window-end, 4 bytes>
+        public static final byte SACK = 6;          // <receiver-window-base, 4 bytes><receiver-window-end, 4 bytes><bitmap>
+
+        public static boolean IsBinary(ByteBuffer datagram) {
+            return datagram.hasRemaining() && datagram.get(datagram.position()) < ' ';
+        }
+
+        public static void PutHeader(ByteBuffer out, byte type, int stream, int number, int bodyLength) {
+            out.put(type);
+            out.putInt(stream);
+            out.putInt(number);
+            out.putShort((short)bodyLength);
+        }
+
+        public static void PutAck(ByteBuffer out, int stream, int packetNum, int rcvWindowEnd) {
+            PutHeader(out, ACK, stream, packetNum, 4);
+            out.putInt(rcvWindowEnd);
+        }
+
+        public static void PutSack(ByteBuffer out, int stream, int packetNum, int rcvWindowBase, BitSet received, int rcvWindowEnd) {
+            // bit i of the bitmap is packet rcvWindowBase + i, lowest bit of the first byte first
+            byte[] bitmap = received.toByteArray();
+            PutHeader(out, SACK, stream, packetNum, 8 + bitmap.length);
+            out.putInt(rcvWindowBase);
+            out.putInt(rcvWindowEnd);
+            out.put(bitmap);
+        }
+
+        public static byte TypeOf(char kind) {
+            switch (kind) {
+                case PacketFormat.TEXT:
+                    return TEXT;
+                case PacketFormat.FILE_START:
+                    return FILE_START;
+                case PacketFormat.FILE_DATA:
+                    return FILE_DATA;
+                case PacketFormat.FEC_PARITY:
+                    return FEC_PARITY;
+            }
+            throw new IllegalArgumentException("Unknown packet kind " + kind);
+        }
+
+        public static char KindOf(byte type) {
+            switch (type) {
+                case TEXT:
+                    return PacketFormat.TEXT;
+                case FILE_START:
+                    return PacketFormat.FILE_START;
+                case FILE_DATA:
+                    return PacketFormat.FILE_DATA;
+                case FEC_PARITY:
+                    return PacketFormat.FEC_PARITY;
+            }
+            throw new IllegalArgumentException("Unknown packet type " + type);
+        }
+    }
+
+    // datagram sized buffers for the event loop to receive into and send from, handed back
+    // when done so we aren't allocating one per packet, only the event loop thread uses it
+    private static class BufferPool {
+
+        private final int bufferSize;
+        private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+
+        public BufferPool(int bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+
+        public ByteBuffer Take() {
+            ByteBuffer buffer = free.pollFirst();
+            if (buffer == null) {
+                // direct, so the channel can read and write it without its own copy
+                buffer = ByteBuffer.allocateDirect(bufferSize);
+            }
+            buffer.clear();
+            return buffer;
+        }
+
+        // buffers that didn't come from Take (like a rebuilt packet's) are left to the garbage collector
+        public void Release(ByteBuffer buffer) {
+            if (buffer.isDirect() && buffer.capacity() == bufferSize) {
+                free.addFirst(buffer);
+            }
+        }
+    }
+
+    // defines what we print for the sender component
+    // called on the log writer thread, with the time the event happened
+    private static class SenderPrinting {
+
+        public static void PrintSendPacket(StringBuilder out, long timestamp, int packetNum, String data) {
+            String toPrint = "[" + timestamp + "] packet-" + packetNum + " " + data + " sent";
+            out.append(toPrint).append('\n');
+        }
+
+        // Receive Ack-1 refers to receiving the ack but no window advancement occurs
+        public static void PrintAck1(StringBuilder out, long timestamp, int packetNum) {
+            String toPrint = "[" + timestamp + "] ACK-" + packetNum + " received";
+            out.append(toPrint).append('\n');
+        }
+
+        // window advancement occurs for Receive Ack-2, with starting/ending packet number of the window
+        public static void PrintAck2(StringBuilder out, long timestamp, int packetNum, int windowStart, int windowEnd) {
+            String toPrint = "[" + timestamp + "] ACK-" + packetNum + " received; window = [" + windowStart + "," + windowEnd + "]";
+            out.append(toPrint).append('\n');
+        }
+
+        // congestion window trace, printed whenever the usable window changes
+        public static void PrintCongestionWindow(StringBuilder out, long timestamp, double cwnd, double ssthresh) {
+            double roundedCwnd = (double)Math.round(cwnd * 1000)/1000; // round to 3 decimal places
+            double roundedSsthresh = (double)Math.round(ssthresh * 1000)/1000; // round to 3 decimal places
+            String toPrint = "[" + timestamp + "] cwnd = " + roundedCwnd + ", ssthresh = " + roundedSsthresh;
+            out.append(toPrint).append('\n');
+        }
+
+        // totals for one message, retransmissions are packets resent after a timeout or a fast retransmit
+        public static void PrintSummary(StringBuilder out, long timestamp, int numPacketsSent, int numRetransmissions, int numFastRetransmissions, long elapsedMs) {
+            String toPrint = "[" + timestamp + "] " + numPacketsSent + " packets sent, " + numRetransmissions + " retransmissions (" + numFastRetransmissions + " fast) in " + elapsedMs + " ms";
+            out.append(toPrint).append('\n');
+        }
+
+        public static void PrintFileSent(StringBuilder out, long timestamp, String path, long numBytes, long elapsedMs) {
+            String toPrint = "[" + timestamp + "] file " + path + " sent, " + numBytes + " bytes in " + elapsedMs + " ms (" + MegabytesPerSecond(numBytes, elapsedMs) + " MB/s)";
+            out.append(toPrint).append('\n');
+        }
+
+        public static void PrintTimeout(StringBuilder out, long timestamp, int packetNum) {
+            String toPrint = "[" + timestamp + "] packet-" + packetNum + " timeout";
+            out.append(toPrint).append('\n');
+        }
+
+    }
+
+    // defines what we print for the receiver component
+    // called on the log writer thread, with the time the event happened
+    private static class ReceiverPrinting {
+
+        public static void PrintReceive1(StringBuilder out, long timestamp, int packetNum, String data) {
+            String toPrint = "[" + timestamp + "] packet-" + packetNum + " " + data + " received";
+            out.append(toPrint).append('\n');
+        }
+
+        public static void PrintReceive2(StringBuilder out, long timestamp, int packetNum, String data, int windowStart, int windowEnd) {
+            String toPrint = "[" + timestamp + "] packet-" + packetNum + " " + data + " received; window = [" + windowStart + "," + windowEnd + "]";
+            out.append(toPrint).append('\n');
+        }
+
+        public static void PrintSendAck(StringBuilder out, long timestamp, int packetNum) {
+            String toPrint = "[" + timestamp + "] ACK-" + packetNum + " sent";
+            out.append(toPrint).append('\n');
+        }
+
+        public static void PrintFileReceived(StringBuilder out, long timestamp, String path, long numBytes, long elapsedMs) {
+            String toPrint = "[" + timestamp + "] file " + path + " received, " + numBytes + " bytes in " + elapsedMs + " ms (" + MegabytesPerSecond(numBytes, elapsedMs) + " MB/s)";
+            out.append(toPrint).append('\n');
+        }
+
+        // what the loss model dropped on one stream since its last summary, ACKs for a sender, file packets for a receiver
+        public static void PrintLossStats(StringBuilder out, long timestamp, long numDropped, long numDecisions, boolean acks) {
+            double lossRate = numDecisions == 0 ? 0 : (double)numDropped / numDecisions;
+            lossRate = (double)Math.round(lossRate * 1000)/1000; // round to 3 decimal places
+            String toPrint = "[" + timestamp + "] loss model dropped " + numDropped + " of " + numDecisions + (acks ? " ACKs" : " file packets") + " on this stream (" + lossRate + ")";
+            out.append(toPrint).append('\n');
+        }
+
+        // every other loss decision on the node so far, with the stream lines above it adds up to all of them
+        public static void PrintOtherLossStats(StringBuilder out, long timestamp, long numDropped, long numDecisions) {
+            double lossRate = numDecisions == 0 ? 0 : (double)numDropped / numDecisions;
+            lossRate = (double)Math.round(lossRate * 1000)/1000; // round to 3 decimal places
+            String toPrint = "[" + timestamp + "] loss model dropped " + numDropped + " of " + numDecisions + " other datagrams on this node so far, text and parity packets and ACKs for no stream (" + lossRate + ")";
+            out.append(toPrint).append('\n');
+        }
+
+        // a lost packet we got back from its block's parity, it is then received like any other
+        public static void PrintRebuiltPacket(StringBuilder out, long timestamp, int packetNum, String data) {
+            String toPrint = "[" + timestamp + "] packet-" + packetNum + " " + data + " rebuilt from parity";
+            out.append(toPrint).append('\n');
         }
 
-        public static void PrintDiscardPacket(int packetNum, String data) {
-            long timestamp = Calendar.getInstance().getTimeInMillis();
+        public static void PrintDiscardPacket(StringBuilder out, long timestamp, int packetNum, String data) {
             String toPrint = "[" + timestamp + "] packet-" + packetNum + " " + data + " discarded";
-            System.out.println(toPrint);
+            out.append(toPrint).append('\n');
         }
 
     }
@@ -1,15 +1,26 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class DVNode {
 
     public static void main(String[] args) {
 
+        // "java DVNode simulate ..." runs a whole network of nodes in this JVM instead
+        if (args.length > 0 && "simulate".equals(args[0])) {
+            Simulator.Main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         DVNode node;
         boolean last;
 
         try {
+            // pull out optional flags first, the rest are the usual arguments
+            Options options = new Options();
+            args = Options.Parse(args, options);
+
             int port = Integer.parseInt(args[0]);
 
             HashMap<Integer, Double> neighbors = new HashMap<Integer, Double>();
@@ -26,12 +37,13 @@ public class DVNode {
                 neighbors.put(nPort, nWeight);
             }
 
-            node = new DVNode(port, neighbors);
+            node = new DVNode(port, neighbors, options);
             last = "last".equals(args[args.length - 1]);
         }
         catch (Exception e) {
             e.printStackTrace();
-            System.err.println("Usage: <port-number> <neighbor1port> <neighbor1weight> .... <neighboriport> <neighboriweight> [last]?");
+            System.err.println("Usage: <port-number> <neighbor1port> <neighbor1weight> .... <neighboriport> <neighboriweight> [last]? [holddown <ms>] [maxdelay <ms>] [full] [text] [infinity <cost>] [poison] [feasible] [keepalive <ms>] [detect <ms>]");
+            System.err.println("   or: simulate " + Simulator.USAGE);
             return;
         }
 
@@ -46,17 +58,60 @@ public class DVNode {
     private final int sourcePort;
     private boolean sentBroadcast;
     private DatagramSocket socket;
-    private HashMap<Integer, RoutingTableEntry> routingTable = new HashMap<Integer, RoutingTableEntry>();
+
+    // every node we know of gets a dense id, so our tables are arrays (see RouteTable)
+    private NodeIds ids = new NodeIds();
+    private RouteTable routingTable = new RouteTable();
+
+    // the neighbors get the first ids, so they can be looked up by id too
     private HashMap<Integer, Neighbor> neighbors = new HashMap<Integer, Neighbor>();
+    private Neighbor[] neighborsById;
 
-    public DVNode(int port, HashMap<Integer, Double> neighbors) throws SocketException {
-        this.sourcePort = port;
+    // optional flags from the command line
+    private Options options;
+
+    // with a hold-down, a changed table waits to be broadcast until this time (see ScheduleBroadcast)
+    private boolean broadcastPending;
+    private long broadcastDueTime;
+    private long firstPendingChangeTime;
+
+    // when our routing table last changed
+    private long lastTableChangeTime;
+
+    // with keepalives, when we next say hello to the neighbors, and when we last found one of them down
+    private long nextKeepaliveTime;
+    private long neighborDownTime;
+
+    // set if we run in the simulator, which carries our datagrams and keeps the time instead of a socket
+    private Simulator simulator;
+
+    // with feasible: the lowest cost we've had to each destination since it was last active, and the active
+    // destinations, whose best route is through a neighbor that isn't closer than that (or who have no route left),
+    // with the version of our updates each neighbor has to ACK before we take any route to them (null until it goes out)
+    // both by destination id
+    private HashMap<Integer, Long> feasibleDistances = new HashMap<Integer, Long>();
+    private HashMap<Integer, HashMap<Integer, Integer>> activeDestinations = new HashMap<Integer, HashMap<Integer, Integer>>();
+
+    public DVNode(int port, HashMap<Integer, Double> neighbors, Options options) throws SocketException {
+        this(port, neighbors, options, null);
         this.socket = new DatagramSocket(port);
+    }
+
+    // a node on the simulator's in-memory links
+    private DVNode(int port, HashMap<Integer, Double> neighbors, Options options, Simulator simulator) {
+        this.sourcePort = port;
+        this.options = options;
+        this.simulator = simulator;
 
         for(Map.Entry<Integer, Double> neighbor : neighbors.entrySet()) {
             Neighbor n = new Neighbor(neighbor.getKey(), neighbor.getValue());
             this.neighbors.put(n.Port, n);
         }
+
+        neighborsById = new Neighbor[this.neighbors.size()];
+        for (Neighbor neighbor : this.neighbors.values()) {
+            neighborsById[neighbor.Id] = neighbor;
+        }
     }
 
     // *********************************************
@@ -65,19 +120,43 @@ public class DVNode {
 
     // set up the DVNode
     public void Initialize(boolean isLast) {
+        Start(isLast);
+
+        // listen for incoming updates
+        ListenForUpdates();
+    }
+
+    // everything before we start listening
+    private void Start(boolean isLast) {
         // set up the routing table
         EnsureRoutingTableIsUpdated();
+        lastTableChangeTime = Now();
 
         // print the routing table
-        DvPrinting.PrintRoutingTable(sourcePort, routingTable);
+        DvPrinting.PrintRoutingTable(sourcePort, routingTable, ids);
+
+        // start saying hello
+        if (options.KeepaliveMs > 0) {
+            KeepaliveTimer();
+        }
 
         // start broadcast if we're last
         if (isLast) {
             Broadcast();
         }
+    }
 
-        // listen for incoming updates
-        ListenForUpdates();
+    // the neighbor with this id, or null if it isn't one
+    private Neighbor NeighborById(int id) {
+        return id >= 0 && id < neighborsById.length ? neighborsById[id] : null;
+    }
+
+    // the time in ms, simulated if we're in the simulator
+    private long Now() {
+        if (simulator != null) {
+            return simulator.Now();
+        }
+        return Calendar.getInstance().getTimeInMillis();
     }
 
     // listen for incoming udp messages
@@ -89,17 +168,76 @@ public class DVNode {
             DatagramPacket receivedDatagram = new DatagramPacket(buffer, buffer.length);
 
             try {
+                // if a broadcast is being held, or there is keepalive work coming, wait no longer than that
+                long wakeTime = Long.MAX_VALUE;
+                if (broadcastPending) {
+                    wakeTime = broadcastDueTime;
+                }
+                if (options.KeepaliveMs > 0) {
+                    wakeTime = Math.min(wakeTime, NextKeepaliveTime());
+                }
+                int waitMs = 0;
+                if (wakeTime != Long.MAX_VALUE) {
+                    waitMs = (int)Math.max(1, wakeTime - Now());
+                }
+                socket.setSoTimeout(waitMs);
+
                 socket.receive(receivedDatagram);
             }
+            catch (SocketTimeoutException e) {
+                RunTimers();
+                continue;
+            }
             catch (IOException e) {
                 continue; // just swallow this, received a weird packet
             }
 
-            int fromPort = receivedDatagram.getPort();
-            String msg = new String(buffer, 0, receivedDatagram.getLength()).trim();
+            HandleDatagram(receivedDatagram.getPort(), buffer, receivedDatagram.getLength());
+        }
+    }
+
+    // handle one received datagram, from the socket or the simulator
+    private void HandleDatagram(int fromPort, byte[] buffer, int length) {
+
+        // with keepalives, anything at all from a neighbor means it's up
+        Neighbor neighbor = neighbors.get(fromPort);
+        if (options.KeepaliveMs > 0 && neighbor != null) {
+            neighbor.LastHeardTime = Now();
+            neighbor.HeardFrom = true;
+            if (!neighbor.Alive) {
+                NeighborUp(neighbor);
+            }
+        }
+
+        // a hello says nothing else
+        if (IsKeepalive(buffer, length)) {
+            RunTimers();
+            return;
+        }
+
+        // binary messages start with a type byte no text message can start with
+        if (DvBinary.IsBinary(buffer, length)) {
+            HandleBinaryFromNeighbor(fromPort, ByteBuffer.wrap(buffer, 0, length));
+            RunTimers();
+            return;
+        }
+
+        String msg = new String(buffer, 0, length).trim();
 
+        if (msg.startsWith(MessageCreator.ACK_PREFIX)) {
+            HandleAckFromNeighbor(fromPort, msg);
+        }
+        else {
             HandleDvFromNeighbor(fromPort, msg);
         }
+        RunTimers();
+    }
+
+    private static boolean IsKeepalive(byte[] buffer, int length) {
+        if (DvBinary.IsBinary(buffer, length)) {
+            return buffer[0] == DvBinary.HELLO;
+        }
+        return MessageCreator.HELLO.equals(new String(buffer, 0, length).trim());
     }
 
     // handle a received udp message
@@ -114,208 +252,1846 @@ public class DVNode {
             return;
         }
 
-        HashMap<Integer, RoutingTableEntry> neighborRoutingTable = new HashMap<Integer, RoutingTableEntry>();
+        String[] parts = message.split(" ");
+        DvUpdate update;
 
-        // parse the message into the neighbors routing table
+        // parse the message into an update of the neighbors routing table
         try {
-            for (String entryString : message.split(" ")) {
-                if (entryString.isEmpty()) {
-                    continue;
-                }
+            if (MessageCreator.FULL_PREFIX.equals(parts[0])) {
+                update = new DvUpdate(DvUpdate.FULL, 0, Integer.parseInt(parts[1]), ParseEntries(parts, 2));
+            }
+            else if (MessageCreator.DELTA_PREFIX.equals(parts[0])) {
+                update = new DvUpdate(DvUpdate.DELTA, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), ParseEntries(parts, 3));
+            }
+            else {
+                // a whole table without a version, from a node sending full tables
+                update = new DvUpdate(DvUpdate.UNVERSIONED, 0, 0, ParseEntries(parts, 0));
+            }
+        }
+        catch (Exception e) {
+            // received an improperly formatted message, which should never happen - just ignore it
+            return;
+        }
+
+        ApplyUpdate(neighbors.get(fromPort), update);
+    }
 
-                String[] entryParts = entryString.split(",");
+    // handle one binary datagram, an ACK or one fragment of an update
+    private void HandleBinaryFromNeighbor(int fromPort, ByteBuffer datagram) {
+        Neighbor neighbor = neighbors.get(fromPort);
 
-                int toPort = Integer.parseInt(entryParts[0]);
-                int neighborPort = Integer.parseInt(entryParts[1]);
-                double weight = Double.parseDouble(entryParts[2]);
+        try {
+            if (DvBinary.TypeOf(datagram) == DvBinary.ACK) {
+                if (neighbor != null) {
+                    HandleAck(neighbor, DvBinary.GetAck(datagram));
+                }
+                return;
+            }
 
-                neighborRoutingTable.put(toPort, new RoutingTableEntry(toPort, neighborPort, weight));
+            // the update is only received (and printed) once every fragment is in
+            if (neighbor == null) {
+                return;
             }
+            DvUpdate update = neighbor.Reassemble(datagram);
+            if (update == null) {
+                return;
+            }
+
+            DvPrinting.PrintRcvMessage(sourcePort, fromPort);
+            ApplyUpdate(neighbor, update);
         }
         catch (Exception e) {
             // received an improperly formatted message, which should never happen - just ignore it
-            return;
+        }
+    }
+
+    // apply an update from a neighbor to its routing table, then to ours
+    private void ApplyUpdate(Neighbor neighbor, DvUpdate update) {
+
+        // destinations whose cost through this neighbor may have changed,
+        // only these can change in our table
+        Collection<Integer> changedDestinations;
+
+        if (update.Kind == DvUpdate.DELTA) {
+            // either old news, or built on a version we don't have, tell the neighbor where we are
+            if (update.Version <= neighbor.RcvVersion || update.BaseVersion > neighbor.RcvVersion) {
+                SendAck(neighbor);
+                return;
+            }
+
+            changedDestinations = update.Entries.Ids();
+            for (int toId : changedDestinations) {
+                if (update.Entries.NextHop(toId) == RouteTable.WITHDRAWN) {
+                    neighbor.Routes.Remove(toId);
+                }
+                else {
+                    neighbor.Routes.Put(toId, update.Entries.NextHop(toId), update.Entries.Weight(toId));
+                }
+            }
+        }
+        else {
+            // a whole table, replaces whatever we had no matter what version it is,
+            // so a neighbor that starts over is believed (poisoned routes are just routes it doesn't have)
+            update.Entries.RemoveWithdrawn();
+            RouteTable oldNeighborRoutingTable = neighbor.Routes;
+            neighbor.Routes = update.Entries;
+            changedDestinations = ChangedDestinations(oldNeighborRoutingTable, update.Entries);
+        }
+
+        // versioned updates get ACKed, so the neighbor knows what to send deltas from
+        if (update.Kind != DvUpdate.UNVERSIONED) {
+            neighbor.RcvVersion = update.Version;
+            SendAck(neighbor);
         }
 
-        // update the neighbors routing table
-        neighbors.get(fromPort).Routes = neighborRoutingTable;
+        List<Integer> changed = UpdateRoutes(changedDestinations);
 
         // update routing table - if it changed print and broadcast
-        if (EnsureRoutingTableIsUpdated()) {
-            DvPrinting.PrintRoutingTable(sourcePort, routingTable);
-            Broadcast();
+        if (!changed.isEmpty()) {
+            TableChanged();
         }
         else if (!sentBroadcast) { // we need to broadcast at least once or DV initialization fails
-            Broadcast();
+            ScheduleBroadcast();
         }
     }
 
-    // updates routing table based on neighbor info, returns true if table changed
-    private boolean EnsureRoutingTableIsUpdated() {
+    // print the changed routing table and get it out to the neighbors
+    private void TableChanged() {
+        lastTableChangeTime = Now();
+        DvPrinting.PrintRoutingTable(sourcePort, routingTable, ids);
+        ScheduleBroadcast();
+    }
 
-        HashMap<Integer, RoutingTableEntry> newRoutingTable = new HashMap<Integer, RoutingTableEntry>();
+    // the cost of a link changed (to the infinity metric or more if it went down),
+    // only the neighbor itself and what we can reach through it can change
+    private void ChangeLink(int neighborPort, double weight) {
+        Neighbor neighbor = neighbors.get(neighborPort);
+        neighbor.Weight = RouteTable.Milli(weight);
 
-        // initialize routing table with direct neighbor links
-        for (Neighbor neighbor : neighbors.values()) {
-            RoutingTableEntry entry = new RoutingTableEntry(neighbor.Port, neighbor.Port, neighbor.Weight);
-            newRoutingTable.put(entry.ToPort, entry);
+        Set<Integer> destinations = new HashSet<Integer>(neighbor.Routes.Ids());
+        destinations.add(neighbor.Id);
+        if (!UpdateRoutes(destinations).isEmpty()) {
+            TableChanged();
         }
+    }
 
-        // examine each neighbors routes and update ours accordingly
-        for (Neighbor neighbor : neighbors.values()) {
-            for (RoutingTableEntry neighborEntry : neighbor.Routes.values()) {
-                RoutingTableEntry newEntry = new RoutingTableEntry(neighborEntry.ToPort, neighbor.Port, neighborEntry.Weight + neighbor.Weight);
+    // a neighbor we can route through: its link isn't down, and with keepalives, we still hear from it
+    private boolean IsUp(Neighbor neighbor) {
+        return neighbor.Alive && neighbor.Weight < options.Infinity;
+    }
 
-                // if we don't have this route yet, add it
-                if (!newRoutingTable.containsKey(newEntry.ToPort)) {
-                    newRoutingTable.put(newEntry.ToPort, newEntry);
-                }
-                else { // otherwise only add it if it's better
-                    RoutingTableEntry existingEntry = newRoutingTable.get(neighborEntry.ToPort);
-                    if (newEntry.Weight < existingEntry.Weight) {
-                        newRoutingTable.put(newEntry.ToPort, newEntry);
-                    }
-                }
+    // we haven't heard from a neighbor for the detection time, so it's down until we hear from it again
+    // everything it told us is gone, and the routes through it switch to their backup right away
+    // (see LoopFreeAlternate), those without one are worked out again from what the other neighbors told us
+    private void NeighborDown(Neighbor neighbor) {
+        neighbor.Alive = false;
+        neighborDownTime = Now();
+        DvPrinting.PrintNeighborDown(sourcePort, neighbor.Port);
+
+        List<Integer> destinations = neighbor.Routes.Ids();
+        destinations.add(neighbor.Id);
+
+        // whatever it comes back as, it starts over from full tables both ways
+        neighbor.Routes = new RouteTable();
+        neighbor.RcvVersion = 0;
+        neighbor.ForgetSentVersions();
+
+        // it won't ACK anything now, so active destinations stop waiting for it
+        for (HashMap<Integer, Integer> waiting : activeDestinations.values()) {
+            if (waiting != null) {
+                waiting.remove(neighbor.Port);
             }
         }
 
-        // see if there are any differences between our new and old routing table
-        boolean updated = false;
-        for (RoutingTableEntry newEntry : newRoutingTable.values()) {
-            if (!routingTable.containsKey(newEntry.ToPort)) {
-                updated = true;
-                break;
-            }
-            RoutingTableEntry existingEntry = routingTable.get(newEntry.ToPort);
-            if (existingEntry.NeighborPort != newEntry.NeighborPort || existingEntry.Weight != newEntry.Weight) {
-                updated = true;
-                break;
+        boolean changed = false;
+        List<Integer> others = new ArrayList<Integer>();
+        for (int toId : destinations) {
+            Neighbor backup = NeighborById(routingTable.Backup(toId));
+            if (routingTable.NextHop(toId) != neighbor.Id || backup == null || !IsUp(backup) || (backup.Id != toId && !backup.Routes.Has(toId))) {
+                others.add(toId);
+                continue;
             }
+
+            long weight = backup.Weight + (backup.Id == toId ? 0 : backup.Routes.Weight(toId));
+            routingTable.Put(toId, backup.Id, weight);
+            routingTable.SetBackup(toId, RouteTable.NONE);
+            changed = true;
         }
+        changed |= !UpdateRoutes(others).isEmpty();
 
-        routingTable = newRoutingTable;
-        return updated;
+        if (changed) {
+            TableChanged();
+        }
+        ReleaseActiveDestinations();
     }
 
-    // Distance Vector broadcast of our routing table to all neighbors
-    private void Broadcast() {
-        for (int neighborPort : neighbors.keySet()) {
+    // we hear from a neighbor we had down again
+    private void NeighborUp(Neighbor neighbor) {
+        neighbor.Alive = true;
+        DvPrinting.PrintNeighborUp(sourcePort, neighbor.Port);
+
+        if (!UpdateRoutes(Collections.singletonList(neighbor.Id)).isEmpty()) {
+            TableChanged();
+        }
+
+        // it may have started over, so it gets everything, and our ACK of nothing gets us everything of its
+        if (!sentBroadcast) {
+            return;
+        }
+        if (options.FullTables) {
+            ScheduleBroadcast();
+        }
+        else {
+            SendAck(neighbor);
+            if (SendUpdate(neighbor)) {
+                DvPrinting.PrintSendMessage(sourcePort, neighbor.Port);
+            }
+        }
+    }
 
-            String message = MessageCreator.Broadcast(neighborPort, routingTable);
+    // parse "<reachable-node>,<next-node>,<weight>" entries starting at parts[first],
+    // a withdrawn destination ("<reachable-node>,-") is WITHDRAWN
+    private RouteTable ParseEntries(String[] parts, int first) throws NumberFormatException {
+        RouteTable entries = new RouteTable();
 
-            // if we haven't broadcast at least once,
-            // AND we have nothing to send this neighbor, send a blank message just to
-            // trigger the initial DV flood
-            if (message == null && !sentBroadcast) {
-                message = "";
+        for (int i = first; i < parts.length; i++) {
+            if (parts[i].isEmpty()) {
+                continue;
             }
 
-            // if we have nothing to send, skip this neighbor
-            if (message == null) {
+            String[] entryParts = parts[i].split(",");
+
+            int toId = ids.Id(Integer.parseInt(entryParts[0]));
+            if (MessageCreator.WITHDRAWN.equals(entryParts[1])) {
+                entries.Withdraw(toId);
                 continue;
             }
 
-            ReliableSend(neighborPort, message);
-            DvPrinting.PrintSendMessage(sourcePort, neighborPort);
+            int nextHop = ids.Id(Integer.parseInt(entryParts[1]));
+            long weight = RouteTable.Milli(Double.parseDouble(entryParts[2]));
+
+            entries.Put(toId, nextHop, weight);
         }
 
-        // mark that we have sent at least 1 broadcast
-        sentBroadcast = true;
+        return entries;
     }
 
-    // we assume sending is reliable for DVNode
-    private void ReliableSend(int toPort, String message) {
+    // a neighbor tells us which version of our updates it has
+    private void HandleAckFromNeighbor(int fromPort, String message) {
+        Neighbor neighbor = neighbors.get(fromPort);
+        if (neighbor == null) {
+            return;
+        }
+
+        int version;
         try {
-            // all communication is on the same machine, so use local host
-            InetAddress receiverAddress = InetAddress.getLocalHost();
-            byte[] buffer = message.getBytes();
-            DatagramPacket datagram = new DatagramPacket(buffer, buffer.length, receiverAddress, toPort);
-            socket.send(datagram);
+            version = Integer.parseInt(message.split(" ")[1]);
         }
         catch (Exception e) {
-            // just swallow this, assignment says to assume UDP is reliable for this part
+            return; // this should never happen, invalid ACK message
         }
+
+        HandleAck(neighbor, version);
     }
 
-    // *********************************************
-    // ************** HELPER CLASSES ***************
-    // *********************************************
+    private void HandleAck(Neighbor neighbor, int version) {
 
-    // info we need to store about each neighbor to compute routing table
-    private class Neighbor {
-        public final int Port;
-        public double Weight;
-        public HashMap<Integer, RoutingTableEntry> Routes = new HashMap<Integer, RoutingTableEntry>();
+        // it has less than it already ACKed, so it must have started over, give it everything
+        if (version < neighbor.AckedVersion) {
+            neighbor.ForgetSentVersions();
+            if (SendUpdate(neighbor)) {
+                DvPrinting.PrintSendMessage(sourcePort, neighbor.Port);
+            }
+            return;
+        }
 
-        public Neighbor(int port, double weight) {
-            Port = port;
-            Weight = (double)Math.round(weight * 1000)/1000; // round to 3 decimal places
+        // from now on, deltas can be built on this version
+        RouteTable view = neighbor.SentViews.get(version);
+        if (view != null) {
+            neighbor.AckedVersion = version;
+            neighbor.AckedView = view;
+            neighbor.SentViews.headMap(version, true).clear();
+            neighbor.SentKeys.headMap(version, true).clear();
+            ReleaseActiveDestinations();
         }
     }
 
-    // routing used by this node
-    private class RoutingTableEntry {
-        public final int ToPort;
-        public int NeighborPort;
-        public final double Weight;
+    // active destinations whose new route (or withdrawal) every neighbor has ACKed start over, any route
+    // will do again. An ACK only says the neighbor has the news, not that it has worked its own routes out
+    // again, so this isn't DUAL's reply: a neighbor may still pass on a route it learned through us, and it's
+    // the infinity bound that stops that counting (DUAL waits for a reply per destination, and our ACKs cover
+    // every destination at once, so holding one back for a destination still active could deadlock)
+    private void ReleaseActiveDestinations() {
+        List<Integer> released = new ArrayList<Integer>();
+        for (Map.Entry<Integer, HashMap<Integer, Integer>> active : activeDestinations.entrySet()) {
+            if (active.getValue() == null) {
+                continue; // not sent yet
+            }
+
+            boolean acked = true;
+            for (Map.Entry<Integer, Integer> waiting : active.getValue().entrySet()) {
+                acked &= neighbors.get(waiting.getKey()).AckedVersion >= waiting.getValue();
+            }
+            if (acked) {
+                released.add(active.getKey());
+            }
+        }
 
-        public RoutingTableEntry(int toPort, int neighborPort, double weight) {
-            ToPort = toPort;
-            NeighborPort = neighborPort;
-            Weight = (double)Math.round(weight * 1000)/1000; // round to 3 decimal places
+        if (released.isEmpty()) {
+            return;
+        }
+        for (int toId : released) {
+            activeDestinations.remove(toId);
+            feasibleDistances.remove(toId);
+        }
+        if (!UpdateRoutes(released).isEmpty()) {
+            TableChanged();
         }
     }
 
-    // defines the packet contents of each type of message
-    private static class MessageCreator {
+    // tell a neighbor which version of its updates we have
+    private void SendAck(Neighbor neighbor) {
+        if (options.TextUpdates) {
+            ReliableSend(neighbor.Port, MessageCreator.Ack(neighbor.RcvVersion));
+        }
+        else {
+            ReliableSend(neighbor.Port, DvBinary.Ack(neighbor.RcvVersion));
+        }
+    }
 
-        public static String Broadcast(int neighborPort, HashMap<Integer, RoutingTableEntry> routingTable) {
-            // I am defining the broadcast message as follows:
-            // <reachable-node1>,<next-node1>,<weight1> <reachable-node2>,<next-node2>,<weight2> ...
+    // send a neighbor its next versioned update, returns false if it already has (or will have) everything
+    private boolean SendUpdate(Neighbor neighbor) {
+        DvUpdate update = CreateUpdate(neighbor);
+        if (update == null) {
+            return false;
+        }
 
-            String message = "";
-            for (RoutingTableEntry entry : routingTable.values()) {
-                // only tell neighbor we can get to places that don't go through them
-                if (entry.NeighborPort != neighborPort && entry.ToPort != neighborPort){
-                    message += entry.ToPort + "," + entry.NeighborPort + "," + entry.Weight + " ";
+        if (options.TextUpdates) {
+            ReliableSend(neighbor.Port, MessageCreator.Update(update, ids));
+        }
+        else {
+            // as many datagrams as it takes, the neighbor puts them back together
+            for (byte[] fragment : DvBinary.Encode(update, ids)) {
+                ReliableSend(neighbor.Port, fragment);
+            }
+        }
+        return true;
+    }
+
+    // the next versioned update for a neighbor, or null if it already has (or will have) everything
+    // this is a delta from the last version the neighbor ACKed, unless we don't know of any,
+    // or the delta would be as big as the whole table
+    private DvUpdate CreateUpdate(Neighbor neighbor) {
+        RouteTable view = MessageCreator.View(neighbor.Id, routingTable);
+
+        // nothing new since the last one we sent (unless this is our first broadcast, which has to go)
+        if (sentBroadcast && view.SameAs(neighbor.LastSentView)) {
+            return null;
+        }
+
+        // the neighbor has the ACKed version, and maybe some of the updates sent after it,
+        // so the delta covers what changed since the ACKed version, and everything those updates touched
+        BitSet keys = new BitSet();
+        for (BitSet sentKeys : neighbor.SentKeys.values()) {
+            keys.or(sentKeys);
+        }
+        int length = Math.max(view.Length(), neighbor.AckedView.Length());
+        for (int toId = 0; toId < length; toId++) {
+            if (!view.SameRoute(toId, neighbor.AckedView)) {
+                keys.set(toId);
+            }
+        }
+
+        int version = ++neighbor.SentVersion;
+        DvUpdate update;
+        if (neighbor.AckedVersion == 0 || keys.cardinality() >= view.Size()) {
+            RouteTable entries = view;
+            if (options.PoisonReverse) {
+                entries = MessageCreator.Poisoned(neighbor.Id, view, routingTable);
+            }
+            update = new DvUpdate(DvUpdate.FULL, 0, version, entries);
+
+            // a full table replaces everything, so it touches everything either version has
+            for (int toId = 0; toId < length; toId++) {
+                if (view.Has(toId) || neighbor.AckedView.Has(toId)) {
+                    keys.set(toId);
+                }
+            }
+        }
+        else {
+            // a destination missing from the view is withdrawn
+            RouteTable entries = new RouteTable();
+            for (int toId = keys.nextSetBit(0); toId >= 0; toId = keys.nextSetBit(toId + 1)) {
+                if (view.Has(toId)) {
+                    entries.Put(toId, view.NextHop(toId), view.Weight(toId));
+                }
+                else {
+                    entries.Withdraw(toId);
                 }
             }
+            update = new DvUpdate(DvUpdate.DELTA, neighbor.AckedVersion, version, entries);
+        }
 
-            // if we have nothing to send to this neighbor, don't send
-            if (!message.endsWith(" ")) {
-                return null;
+        neighbor.SentViews.put(version, view);
+        neighbor.SentKeys.put(version, keys);
+        neighbor.LastSentView = view;
+        return update;
+    }
+
+    // broadcast now, or with a hold-down, once the table has been quiet for that long
+    // every change pushes the broadcast back, so a cascade of updates goes out as one,
+    // but never more than the max delay after the first change it's holding
+    private void ScheduleBroadcast() {
+        if (options.HoldDownMs == 0) {
+            Broadcast();
+            return;
+        }
+
+        long now = Now();
+        if (!broadcastPending) {
+            broadcastPending = true;
+            firstPendingChangeTime = now;
+        }
+        broadcastDueTime = Math.min(now + options.HoldDownMs, firstPendingChangeTime + options.MaxDelayMs);
+
+        // the socket loop wakes itself up in time, the simulator has to be told
+        if (simulator != null) {
+            simulator.Schedule(this, broadcastDueTime);
+        }
+    }
+
+    // send the held broadcast if its time has come
+    private void BroadcastIfDue() {
+        if (broadcastPending && Now() >= broadcastDueTime) {
+            broadcastPending = false;
+            Broadcast();
+        }
+    }
+
+    // whatever timed work has come due
+    private void RunTimers() {
+        BroadcastIfDue();
+        KeepaliveIfDue();
+    }
+
+    // with keepalives: count the neighbors we have heard from once, but not since the detection time, as down,
+    // and say hello to all of them (down ones too, so they know we're back) every keepalive interval
+    private void KeepaliveIfDue() {
+        if (options.KeepaliveMs == 0) {
+            return;
+        }
+
+        long now = Now();
+        for (Neighbor neighbor : neighbors.values()) {
+            if (neighbor.Alive && neighbor.HeardFrom && now >= neighbor.LastHeardTime + options.DetectMs) {
+                NeighborDown(neighbor);
             }
-            else {
-                return message.trim();
+        }
+
+        if (now >= nextKeepaliveTime) {
+            for (Neighbor neighbor : neighbors.values()) {
+                if (options.TextUpdates || options.FullTables) {
+                    ReliableSend(neighbor.Port, MessageCreator.HELLO);
+                }
+                else {
+                    ReliableSend(neighbor.Port, DvBinary.Hello());
+                }
             }
+            nextKeepaliveTime = now + options.KeepaliveMs;
         }
+    }
 
+    // when KeepaliveIfDue next has something to do, a neighbor can only be heard from later, never earlier
+    private long NextKeepaliveTime() {
+        long time = nextKeepaliveTime;
+        for (Neighbor neighbor : neighbors.values()) {
+            if (neighbor.Alive && neighbor.HeardFrom) {
+                time = Math.min(time, neighbor.LastHeardTime + options.DetectMs);
+            }
+        }
+        return time;
     }
 
-    // defines what we print for the DV component
-    private static class DvPrinting {
+    // the keepalive timer went off (or we just started), the socket loop sets its own from NextKeepaliveTime
+    private void KeepaliveTimer() {
+        KeepaliveIfDue();
+        if (simulator != null) {
+            simulator.ScheduleKeepalive(this, NextKeepaliveTime());
+        }
+    }
 
-        public static void PrintSendMessage(int sourceNodePort, int destNodePort) {
-            long timestamp = Calendar.getInstance().getTimeInMillis();
-            String toPrint = "[" + timestamp + "] Message sent from Node " + sourceNodePort + " to Node " + destNodePort;
-            System.out.println(toPrint);
+    // updates routing table based on neighbor info, returns true if table changed
+    private boolean EnsureRoutingTableIsUpdated() {
+
+        // every destination we or any neighbor knows about
+        Set<Integer> destinations = new HashSet<Integer>(routingTable.Ids());
+        for (Neighbor neighbor : neighbors.values()) {
+            destinations.add(neighbor.Id);
+            destinations.addAll(neighbor.Routes.Ids());
         }
 
-        public static void PrintRcvMessage(int destNodePort, int sourceNodePort) {
-            long timestamp = Calendar.getInstance().getTimeInMillis();
-            String toPrint = "[" + timestamp + "] Message received at Node " + destNodePort + " from Node " + sourceNodePort;
-            System.out.println(toPrint);
+        return !UpdateRoutes(destinations).isEmpty();
+    }
+
+    // destinations a neighbor added, dropped, or changed the cost of between two of its vectors
+    private static List<Integer> ChangedDestinations(RouteTable oldRoutes, RouteTable newRoutes) {
+        List<Integer> changed = new ArrayList<Integer>();
+
+        int length = Math.max(oldRoutes.Length(), newRoutes.Length());
+        for (int toId = 0; toId < length; toId++) {
+            if (oldRoutes.Has(toId) != newRoutes.Has(toId) || oldRoutes.Weight(toId) != newRoutes.Weight(toId)) {
+                changed.add(toId);
+            }
         }
 
-        public static void PrintRoutingTable(int nodePort, HashMap<Integer, RoutingTableEntry> routingTable) {
-            long timestamp = Calendar.getInstance().getTimeInMillis();
-            String toPrint = "[" + timestamp + "] Node " + nodePort + " - Routing Table";
-            for (RoutingTableEntry entry : routingTable.values()) {
-                if (entry.ToPort == entry.NeighborPort) {
-                    toPrint += "\nNode " + entry.ToPort + " -> (" + entry.Weight + ")";
+        return changed;
+    }
+
+    // Bellman-Ford for just these destinations: the cheapest of the direct link
+    // and every neighbor's route, ties going to whichever comes first
+    // updates our routing table in place and returns the destinations whose entry changed
+    private List<Integer> UpdateRoutes(Collection<Integer> destinations) {
+        List<Integer> changed = new ArrayList<Integer>();
+
+        for (int toId : destinations) {
+
+            // start with the direct link, if there is one and it's up
+            int bestNextHop = RouteTable.NONE;
+            long bestWeight = 0;
+            Neighbor direct = NeighborById(toId);
+            if (direct != null && IsUp(direct)) {
+                bestNextHop = toId;
+                bestWeight = direct.Weight;
+            }
+
+            // with feasible, a neighbor that isn't closer than we have been might be routing through us,
+            // so its route is kept apart, and only taken once the destination has been active (see UpdateFeasibility)
+            Long feasibleDistance = feasibleDistances.get(toId);
+            int infeasibleNextHop = RouteTable.NONE;
+            long infeasibleWeight = 0;
+
+            // only take a neighbor's route if it's better
+            for (Neighbor neighbor : neighbors.values()) {
+                if (!neighbor.Routes.Has(toId) || !IsUp(neighbor)) {
+                    continue;
+                }
+
+                long neighborWeight = neighbor.Routes.Weight(toId);
+                long weight = neighborWeight + neighbor.Weight;
+                if (feasibleDistance != null && neighborWeight >= feasibleDistance) {
+                    if (infeasibleNextHop == RouteTable.NONE || weight < infeasibleWeight) {
+                        infeasibleNextHop = neighbor.Id;
+                        infeasibleWeight = weight;
+                    }
+                }
+                else if (bestNextHop == RouteTable.NONE || weight < bestWeight) {
+                    bestNextHop = neighbor.Id;
+                    bestWeight = weight;
+                }
+            }
+
+            // too far is as good as unreachable, so counting to infinity stops there
+            if (bestNextHop != RouteTable.NONE && bestWeight >= options.Infinity) {
+                bestNextHop = RouteTable.NONE;
+            }
+            if (infeasibleNextHop != RouteTable.NONE && (infeasibleWeight >= options.Infinity || (bestNextHop != RouteTable.NONE && bestWeight <= infeasibleWeight))) {
+                infeasibleNextHop = RouteTable.NONE;
+            }
+
+            if (options.FeasibleOnly) {
+                UpdateFeasibility(toId, bestNextHop != RouteTable.NONE, bestWeight, infeasibleNextHop != RouteTable.NONE);
+            }
+
+            // see if this is any different from what we had
+            if (bestNextHop == RouteTable.NONE) {
+                if (routingTable.Has(toId)) {
+                    routingTable.Remove(toId);
+                    changed.add(toId);
+                }
+            }
+            else if (routingTable.NextHop(toId) != bestNextHop || routingTable.Weight(toId) != bestWeight) {
+                routingTable.Put(toId, bestNextHop, bestWeight);
+                changed.add(toId);
+            }
+
+            // with keepalives, what to switch to if the next hop goes down, only used by NeighborDown
+            if (options.KeepaliveMs > 0 && bestNextHop != RouteTable.NONE) {
+                long distance = bestWeight;
+                if (feasibleDistances.containsKey(toId)) {
+                    distance = Math.min(distance, feasibleDistances.get(toId));
+                }
+                routingTable.SetBackup(toId, LoopFreeAlternate(toId, bestNextHop, distance));
+            }
+        }
+
+        return changed;
+    }
+
+    // the cheapest way to a destination through a neighbor other than the next hop that is closer to it than
+    // the distance we have (or have had, see UpdateFeasibility), so its own route can't come back through us,
+    // or NONE. Switching to it when the next hop goes down can't make a loop, unlike whatever is cheapest
+    // among routes the neighbors told us about before they knew
+    private int LoopFreeAlternate(int toId, int nextHop, long distance) {
+        int alternate = RouteTable.NONE;
+        long alternateWeight = 0;
+
+        for (Neighbor neighbor : neighbors.values()) {
+            if (neighbor.Id == nextHop || !IsUp(neighbor)) {
+                continue;
+            }
+
+            long neighborDistance;
+            if (neighbor.Id == toId) {
+                neighborDistance = 0;
+            }
+            else if (neighbor.Routes.Has(toId)) {
+                neighborDistance = neighbor.Routes.Weight(toId);
+            }
+            else {
+                continue;
+            }
+
+            long weight = neighborDistance + neighbor.Weight;
+            if (neighborDistance < distance && weight < options.Infinity && (alternate == RouteTable.NONE || weight < alternateWeight)) {
+                alternate = neighbor.Id;
+                alternateWeight = weight;
+            }
+        }
+        return alternate;
+    }
+
+    // the feasibility condition from DUAL: a neighbor's route is only safe to take if the neighbor is closer than
+    // the feasible distance, the lowest cost we have had since the destination was last active, because then
+    // it can't be routing through us. The feasible distance only comes down, until a better route isn't safe
+    // or we have no route left: then the destination is active, we keep the best safe route (or withdraw it)
+    // until every neighbor has ACKed that, and start over (see ReleaseActiveDestinations)
+    private void UpdateFeasibility(int toId, boolean reachable, long bestWeight, boolean betterInfeasible) {
+        Long feasibleDistance = feasibleDistances.get(toId);
+
+        if (reachable && (feasibleDistance == null || bestWeight < feasibleDistance)) {
+            feasibleDistances.put(toId, bestWeight);
+        }
+
+        if (betterInfeasible || (!reachable && feasibleDistance != null)) {
+            // the wait starts with our next broadcast, even if the table itself didn't change
+            if (!activeDestinations.containsKey(toId)) {
+                activeDestinations.put(toId, null);
+                ScheduleBroadcast();
+            }
+        }
+        else {
+            activeDestinations.remove(toId);
+        }
+    }
+
+    // Distance Vector broadcast of our routing table to all neighbors
+    private void Broadcast() {
+        for (int neighborPort : neighbors.keySet()) {
+
+            // one we have down gets everything once it's back (see NeighborUp)
+            if (!neighbors.get(neighborPort).Alive) {
+                continue;
+            }
+
+            if (options.FullTables) {
+                Neighbor neighbor = neighbors.get(neighborPort);
+                String message = MessageCreator.Broadcast(neighbor.Id, routingTable, ids, options.PoisonReverse);
+
+                // if we haven't broadcast at least once, or the last table we sent this neighbor had routes in it,
+                // AND we have nothing to send this neighbor, send a blank message just to
+                // trigger the initial DV flood, or withdraw those routes
+                if (message == null && (!sentBroadcast || neighbor.SentRoutes)) {
+                    message = "";
+                }
+
+                // if we have nothing to send, skip this neighbor
+                if (message == null) {
+                    continue;
+                }
+
+                ReliableSend(neighborPort, message);
+                neighbor.SentRoutes = !message.isEmpty();
+            }
+            // versioned, the first one is always sent, so it triggers the initial DV flood too
+            else if (!SendUpdate(neighbors.get(neighborPort))) {
+                continue; // nothing new for this neighbor
+            }
+
+            DvPrinting.PrintSendMessage(sourcePort, neighborPort);
+        }
+
+        // mark that we have sent at least 1 broadcast
+        sentBroadcast = true;
+
+        // active destinations that just went out wait for every neighbor with a working link to ACK them
+        for (Map.Entry<Integer, HashMap<Integer, Integer>> active : activeDestinations.entrySet()) {
+            if (active.getValue() == null) {
+                HashMap<Integer, Integer> waiting = new HashMap<Integer, Integer>();
+                for (Neighbor neighbor : neighbors.values()) {
+                    if (IsUp(neighbor)) {
+                        waiting.put(neighbor.Port, neighbor.SentVersion);
+                    }
+                }
+                active.setValue(waiting);
+            }
+        }
+        ReleaseActiveDestinations();
+    }
+
+    // we assume sending is reliable for DVNode
+    private void ReliableSend(int toPort, String message) {
+        ReliableSend(toPort, message.getBytes());
+    }
+
+    private void ReliableSend(int toPort, byte[] buffer) {
+        if (simulator != null) {
+            simulator.Send(sourcePort, toPort, buffer);
+            return;
+        }
+
+        try {
+            // all communication is on the same machine, so use local host
+            InetAddress receiverAddress = InetAddress.getLocalHost();
+            DatagramPacket datagram = new DatagramPacket(buffer, buffer.length, receiverAddress, toPort);
+            socket.send(datagram);
+        }
+        catch (Exception e) {
+            // just swallow this, assignment says to assume UDP is reliable for this part
+        }
+    }
+
+    // *********************************************
+    // ************** HELPER CLASSES ***************
+    // *********************************************
+
+    // optional flags, these can go anywhere after the port number
+    private static class Options {
+
+        // how long the table has to stay unchanged before we broadcast it, 0 broadcasts every change
+        public int HoldDownMs;
+
+        // the longest a change can be held, however often the table keeps changing
+        public int MaxDelayMs = 1000;
+
+        // send the whole table every time, unversioned, instead of deltas
+        public boolean FullTables;
+
+        // send versioned updates as text instead of binary (anything over one datagram is cut off)
+        public boolean TextUpdates;
+
+        // routes that cost this much or more are unreachable, and a link that costs this much is down, in thousandths
+        public long Infinity = Long.MAX_VALUE;
+
+        // tell a neighbor we can't reach what we route through it in every whole table, instead of leaving it out
+        public boolean PoisonReverse;
+
+        // only take a neighbor's route if the neighbor is closer than we have ever been (see UpdateFeasibility)
+        public boolean FeasibleOnly;
+
+        // say hello to the neighbors this often, and count one we haven't heard anything from
+        // for the detection time as down (see KeepaliveIfDue), 0 doesn't
+        public int KeepaliveMs;
+        public int DetectMs;
+
+        // removes the flags it knows from args and returns what's left
+        public static String[] Parse(String[] args, Options options) throws IllegalArgumentException {
+            List<String> rest = new ArrayList<String>();
+
+            for (int i = 0; i < args.length; i++) {
+                if ("holddown".equals(args[i]) && i + 1 < args.length) {
+                    options.HoldDownMs = Integer.parseInt(args[++i]);
+                    if (options.HoldDownMs < 0) {
+                        throw new IllegalArgumentException("Arguments outside valid range.");
+                    }
+                }
+                else if ("maxdelay".equals(args[i]) && i + 1 < args.length) {
+                    options.MaxDelayMs = Integer.parseInt(args[++i]);
+                    if (options.MaxDelayMs < 0) {
+                        throw new IllegalArgumentException("Arguments outside valid range.");
+                    }
+                }
+                else if ("full".equals(args[i])) {
+                    options.FullTables = true;
+                }
+                else if ("text".equals(args[i])) {
+                    options.TextUpdates = true;
+                }
+                else if ("infinity".equals(args[i]) && i + 1 < args.length) {
+                    options.Infinity = RouteTable.Milli(Double.parseDouble(args[++i]));
+                    if (options.Infinity <= 0) {
+                        throw new IllegalArgumentException("Arguments outside valid range.");
+                    }
+                }
+                else if ("poison".equals(args[i])) {
+                    options.PoisonReverse = true;
+                }
+                else if ("feasible".equals(args[i])) {
+                    options.FeasibleOnly = true;
+                }
+                else if ("keepalive".equals(args[i]) && i + 1 < args.length) {
+                    options.KeepaliveMs = Integer.parseInt(args[++i]);
+                    if (options.KeepaliveMs < 1) {
+                        throw new IllegalArgumentException("Arguments outside valid range.");
+                    }
+                }
+                else if ("detect".equals(args[i]) && i + 1 < args.length) {
+                    options.DetectMs = Integer.parseInt(args[++i]);
+                    if (options.DetectMs < 1) {
+                        throw new IllegalArgumentException("Arguments outside valid range.");
+                    }
+                }
+                else {
+                    rest.add(args[i]);
+                }
+            }
+
+            // withdrawals are only over once every neighbor has ACKed them, and full tables don't get ACKed
+            if (options.FeasibleOnly && options.FullTables) {
+                throw new IllegalArgumentException("feasible needs versioned updates, it can't be used with full");
+            }
+
+            // three hellos in a row have to go missing by default, and at least one always has to
+            if (options.DetectMs > 0 && options.KeepaliveMs == 0) {
+                throw new IllegalArgumentException("detect needs keepalive");
+            }
+            if (options.DetectMs == 0) {
+                options.DetectMs = 3 * options.KeepaliveMs;
+            }
+            if (options.KeepaliveMs > 0 && options.DetectMs <= options.KeepaliveMs) {
+                throw new IllegalArgumentException("detect has to be longer than keepalive");
+            }
+
+            return rest.toArray(new String[rest.size()]);
+        }
+    }
+
+    // info we need to store about each neighbor to compute routing table
+    private class Neighbor {
+        public final int Port;
+        public final int Id;
+        public long Weight; // in thousandths
+        public RouteTable Routes = new RouteTable();
+
+        // the version of its updates that Routes is at
+        public int RcvVersion;
+
+        // our updates to it: the last version we sent, the last one it ACKed and what it had then,
+        // and for each version sent since, what it had and which destinations it touched
+        public int SentVersion;
+        public int AckedVersion;
+        public RouteTable AckedView = new RouteTable();
+        public RouteTable LastSentView;
+        public TreeMap<Integer, RouteTable> SentViews = new TreeMap<Integer, RouteTable>();
+        public TreeMap<Integer, BitSet> SentKeys = new TreeMap<Integer, BitSet>();
+
+        // with full tables, whether the last one we sent it had any routes in it
+        public boolean SentRoutes;
+
+        // with keepalives: when we last heard anything from it, and whether it's up, which it is
+        // unless we have heard from it once and then nothing for the detection time
+        public long LastHeardTime;
+        public boolean HeardFrom;
+        public boolean Alive = true;
+
+        // binary updates we have some of the fragments of, by version
+        private TreeMap<Integer, DvUpdate> partialUpdates = new TreeMap<Integer, DvUpdate>();
+
+        public Neighbor(int port, double weight) {
+            Port = port;
+            Id = ids.Id(port);
+            Weight = RouteTable.Milli(weight);
+        }
+
+        // add one binary fragment, returns the whole update once every fragment is in
+        public DvUpdate Reassemble(ByteBuffer datagram) {
+            int kind = DvBinary.TypeOf(datagram);
+            datagram.position(1);
+            int baseVersion = DvBinary.GetVarint(datagram);
+            int version = DvBinary.GetVarint(datagram);
+            int index = DvBinary.GetVarint(datagram);
+            int count = DvBinary.GetVarint(datagram);
+
+            DvUpdate update = partialUpdates.get(version);
+            if (update == null) {
+                update = new DvUpdate(kind, baseVersion, version, new RouteTable());
+                update.fragmentsNeeded = new BitSet(count);
+                update.fragmentsNeeded.set(0, count);
+                partialUpdates.put(version, update);
+            }
+
+            if (update.fragmentsNeeded.get(index)) {
+                DvBinary.GetEntries(datagram, update.Entries, ids);
+                update.fragmentsNeeded.clear(index);
+            }
+
+            if (!update.fragmentsNeeded.isEmpty()) {
+                return null;
+            }
+
+            // anything older still missing fragments is out of date now
+            partialUpdates.headMap(version, true).clear();
+            return update;
+        }
+
+        // we don't know what it has any more, so the next update is a full table
+        public void ForgetSentVersions() {
+            AckedVersion = 0;
+            AckedView = new RouteTable();
+            LastSentView = null;
+            SentViews.clear();
+            SentKeys.clear();
+        }
+    }
+
+    // a dense id for every port we hear of, in the order we hear of them, ports only matter on the wire
+    private static class NodeIds {
+        private HashMap<Integer, Integer> ids = new HashMap<Integer, Integer>();
+        private int[] ports = new int[16];
+
+        // the id of a port, a new one the first time
+        public int Id(int port) {
+            Integer id = ids.get(port);
+            if (id == null) {
+                id = ids.size();
+                if (id == ports.length) {
+                    ports = Arrays.copyOf(ports, id * 2);
+                }
+                ports[id] = port;
+                ids.put(port, id);
+            }
+            return id;
+        }
+
+        // the id of a port, or RouteTable.NONE if we never heard of it
+        public int Find(int port) {
+            Integer id = ids.get(port);
+            return id == null ? RouteTable.NONE : id;
+        }
+
+        public int Port(int id) {
+            return ports[id];
+        }
+    }
+
+    // routes by destination id, as parallel arrays of the next hop's id and the weight in thousandths,
+    // so weights compare exactly and an entry is two array slots instead of an object
+    // an update can also have WITHDRAWN destinations
+    private static class RouteTable {
+        public static final int NONE = -1;
+        public static final int WITHDRAWN = -2;
+
+        private int[] nextHops = new int[0];
+        private long[] weights = new long[0];
+        private int length; // one past the highest id ever put in
+        private int size;
+
+        // only our own routing table has backup next hops, see UpdateRoutes
+        private int[] backups;
+
+        public static long Milli(double weight) {
+            return Math.round(weight * 1000);
+        }
+
+        public static double FromMilli(long weight) {
+            return weight / 1000.0;
+        }
+
+        // ids below this may be in the table, none from here on
+        public int Length() {
+            return length;
+        }
+
+        // the backup next hop's id, or NONE
+        public int Backup(int id) {
+            return backups != null && id < backups.length ? backups[id] : NONE;
+        }
+
+        public void SetBackup(int id, int nextHop) {
+            if (backups == null || backups.length < nextHops.length) {
+                int[] old = backups;
+                backups = new int[nextHops.length];
+                Arrays.fill(backups, NONE);
+                if (old != null) {
+                    System.arraycopy(old, 0, backups, 0, old.length);
+                }
+            }
+            backups[id] = nextHop;
+        }
+
+        // the number of destinations in it, withdrawn ones too
+        public int Size() {
+            return size;
+        }
+
+        // true if there is a route, not just a withdrawal
+        public boolean Has(int id) {
+            return NextHop(id) >= 0;
+        }
+
+        // the next hop's id, NONE, or WITHDRAWN
+        public int NextHop(int id) {
+            return id < length ? nextHops[id] : NONE;
+        }
+
+        public long Weight(int id) {
+            return id < length ? weights[id] : 0;
+        }
+
+        public void Put(int id, int nextHop, long weight) {
+            if (id >= nextHops.length) {
+                int capacity = Math.max(16, Math.max(id + 1, nextHops.length * 2));
+                nextHops = Arrays.copyOf(nextHops, capacity);
+                weights = Arrays.copyOf(weights, capacity);
+                Arrays.fill(nextHops, length, capacity, NONE);
+            }
+            if (id >= length) {
+                length = id + 1;
+            }
+            if (nextHops[id] == NONE) {
+                size++;
+            }
+            nextHops[id] = nextHop;
+            weights[id] = weight;
+        }
+
+        public void Withdraw(int id) {
+            Put(id, WITHDRAWN, 0);
+        }
+
+        public void Remove(int id) {
+            if (id < length && nextHops[id] != NONE) {
+                nextHops[id] = NONE;
+                weights[id] = 0;
+                size--;
+            }
+            if (backups != null && id < backups.length) {
+                backups[id] = NONE;
+            }
+        }
+
+        public void RemoveWithdrawn() {
+            for (int id = 0; id < length; id++) {
+                if (nextHops[id] == WITHDRAWN) {
+                    Remove(id);
+                }
+            }
+        }
+
+        // every id in the table, withdrawn ones too
+        public List<Integer> Ids() {
+            List<Integer> ids = new ArrayList<Integer>(size);
+            for (int id = 0; id < length; id++) {
+                if (nextHops[id] != NONE) {
+                    ids.add(id);
+                }
+            }
+            return ids;
+        }
+
+        // true if both go the same way for the same cost, or neither has the destination
+        public boolean SameRoute(int id, RouteTable other) {
+            return NextHop(id) == other.NextHop(id) && Weight(id) == other.Weight(id);
+        }
+
+        public boolean SameAs(RouteTable other) {
+            if (other == null || size != other.size) {
+                return false;
+            }
+            for (int id = 0; id < length; id++) {
+                if (!SameRoute(id, other)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // defines the packet contents of each type of message
+    private static class MessageCreator {
+
+        // versioned updates, see CreateUpdate
+        public static final String FULL_PREFIX = "FULL";
+        public static final String DELTA_PREFIX = "DELTA";
+        public static final String ACK_PREFIX = "ACK";
+        public static final String WITHDRAWN = "-";
+
+        // a keepalive, just so the neighbor hears from us
+        public static final String HELLO = "HELLO";
+
+        public static RouteTable View(int neighborId, RouteTable routingTable) {
+            // what a neighbor should know of our table
+            RouteTable view = new RouteTable();
+            for (int toId = 0; toId < routingTable.Length(); toId++) {
+                // only tell neighbor we can get to places that don't go through them
+                if (routingTable.Has(toId) && routingTable.NextHop(toId) != neighborId && toId != neighborId){
+                    view.Put(toId, routingTable.NextHop(toId), routingTable.Weight(toId));
+                }
+            }
+            return view;
+        }
+
+        public static String Update(DvUpdate update, NodeIds ids) {
+            // I am defining the update messages as follows, where a withdrawn node has "-" for everything else:
+            // FULL <version> <reachable-node1>,<next-node1>,<weight1> <reachable-node2>,<next-node2>,<weight2> ...
+            // DELTA <base-version> <version> <reachable-node1>,<next-node1>,<weight1> <withdrawn-node2>,- ...
+
+            StringBuilder message = new StringBuilder();
+            if (update.Kind == DvUpdate.FULL) {
+                message.append(FULL_PREFIX).append(' ').append(update.Version);
+            }
+            else {
+                message.append(DELTA_PREFIX).append(' ').append(update.BaseVersion).append(' ').append(update.Version);
+            }
+
+            RouteTable entries = update.Entries;
+            for (int toId = 0; toId < entries.Length(); toId++) {
+                if (entries.NextHop(toId) == RouteTable.WITHDRAWN) {
+                    message.append(' ').append(ids.Port(toId)).append(',').append(WITHDRAWN);
+                }
+                else if (entries.Has(toId)) {
+                    message.append(' ').append(ids.Port(toId)).append(',').append(ids.Port(entries.NextHop(toId))).append(',').append(RouteTable.FromMilli(entries.Weight(toId)));
+                }
+            }
+            return message.toString();
+        }
+
+        public static String Ack(int version) {
+            // ACK <version>
+            return ACK_PREFIX + " " + version;
+        }
+
+        // a whole table for a neighbor with poisoned reverse: the view, plus everything we route through the neighbor as withdrawn
+        public static RouteTable Poisoned(int neighborId, RouteTable view, RouteTable routingTable) {
+            RouteTable entries = new RouteTable();
+            for (int toId = 0; toId < routingTable.Length(); toId++) {
+                if (view.Has(toId)) {
+                    entries.Put(toId, view.NextHop(toId), view.Weight(toId));
+                }
+                else if (routingTable.NextHop(toId) == neighborId && toId != neighborId) {
+                    entries.Withdraw(toId);
+                }
+            }
+            return entries;
+        }
+
+        public static String Broadcast(int neighborId, RouteTable routingTable, NodeIds ids, boolean poison) {
+            // I am defining the broadcast message as follows:
+            // <reachable-node1>,<next-node1>,<weight1> <reachable-node2>,<next-node2>,<weight2> ...
+            // and with poisoned reverse, "<node>,-" for each node we reach through this neighbor
+
+            StringBuilder message = new StringBuilder();
+            for (int toId = 0; toId < routingTable.Length(); toId++) {
+                if (!routingTable.Has(toId)) {
+                    continue;
+                }
+
+                // only tell neighbor we can get to places that don't go through them
+                int nextHop = routingTable.NextHop(toId);
+                if (nextHop != neighborId && toId != neighborId){
+                    message.append(ids.Port(toId)).append(',').append(ids.Port(nextHop)).append(',').append(RouteTable.FromMilli(routingTable.Weight(toId))).append(' ');
+                }
+                else if (poison && toId != neighborId) {
+                    message.append(ids.Port(toId)).append(',').append(WITHDRAWN).append(' ');
+                }
+            }
+
+            // if we have nothing to send to this neighbor, don't send
+            if (message.length() == 0) {
+                return null;
+            }
+            else {
+                return message.toString().trim();
+            }
+        }
+
+    }
+
+    // one versioned update of a neighbor's routing table, however it was sent
+    // Entries has each destination it covers, with the route, or WITHDRAWN if the route is withdrawn
+    private static class DvUpdate {
+
+        // kinds of update
+        public static final int UNVERSIONED = 0; // a whole table from a node sending full tables
+        public static final int FULL = 1;
+        public static final int DELTA = 2;
+
+        public final int Kind;
+        public final int BaseVersion;
+        public final int Version;
+        public final RouteTable Entries;
+
+        // while a binary update is being reassembled, the fragments we don't have yet
+        private BitSet fragmentsNeeded;
+
+        public DvUpdate(int kind, int baseVersion, int version, RouteTable entries) {
+            Kind = kind;
+            BaseVersion = baseVersion;
+            Version = version;
+            Entries = entries;
+        }
+    }
+
+    // the binary form of versioned updates, the default
+    // each datagram is a type byte (below ' ', so it can't be mistaken for text), then varints:
+    //   ACK:          <version>
+    //   FULL, DELTA:  <base-version> <version> <fragment-index> <fragment-count>, then entries until the end:
+    //                 <reachable-node> <next-node> <weight in thousandths>, or <withdrawn-node> 0
+    // an update too big for one datagram is split between entries, so every fragment decodes on its own
+    private static class DvBinary {
+
+        // types, FULL and DELTA are the same as the DvUpdate kinds
+        public static final int ACK = 3;
+        public static final int HELLO = 4;
+
+        // what the receiver reads at most
+        private static final int MAX_DATAGRAM_SIZE = 1024;
+
+        // type byte and four 5 byte varints
+        private static final int MAX_HEADER_SIZE = 21;
+
+        // a 5 byte varint for each port and up to 10 for the weight
+        private static final int MAX_ENTRY_SIZE = 20;
+
+        public static boolean IsBinary(byte[] data, int length) {
+            return length > 0 && data[0] > 0 && data[0] < ' ';
+        }
+
+        public static int TypeOf(ByteBuffer datagram) {
+            return datagram.get(0);
+        }
+
+        public static byte[] Ack(int version) {
+            ByteBuffer out = ByteBuffer.allocate(MAX_HEADER_SIZE);
+            out.put((byte)ACK);
+            PutVarint(out, version);
+            return Arrays.copyOf(out.array(), out.position());
+        }
+
+        public static byte[] Hello() {
+            return new byte[] { HELLO };
+        }
+
+        public static int GetAck(ByteBuffer datagram) {
+            datagram.position(1);
+            return GetVarint(datagram);
+        }
+
+        public static List<byte[]> Encode(DvUpdate update, NodeIds ids) {
+
+            // lay the entries out in datagram sized pieces first, so we know how many there are
+            List<ByteBuffer> pieces = new ArrayList<ByteBuffer>();
+            ByteBuffer piece = ByteBuffer.allocate(MAX_DATAGRAM_SIZE - MAX_HEADER_SIZE);
+            RouteTable routes = update.Entries;
+            for (int toId = 0; toId < routes.Length(); toId++) {
+                int nextHop = routes.NextHop(toId);
+                if (nextHop == RouteTable.NONE) {
+                    continue;
+                }
+
+                if (piece.remaining() < MAX_ENTRY_SIZE) {
+                    pieces.add(piece);
+                    piece = ByteBuffer.allocate(MAX_DATAGRAM_SIZE - MAX_HEADER_SIZE);
+                }
+
+                PutVarint(piece, ids.Port(toId));
+                if (nextHop == RouteTable.WITHDRAWN) {
+                    PutVarint(piece, 0);
+                }
+                else {
+                    PutVarint(piece, ids.Port(nextHop));
+                    PutVarint(piece, routes.Weight(toId));
+                }
+            }
+            pieces.add(piece); // even an empty update is one datagram
+
+            List<byte[]> datagrams = new ArrayList<byte[]>();
+            for (int i = 0; i < pieces.size(); i++) {
+                ByteBuffer out = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+                out.put((byte)update.Kind);
+                PutVarint(out, update.BaseVersion);
+                PutVarint(out, update.Version);
+                PutVarint(out, i);
+                PutVarint(out, pieces.size());
+
+                ByteBuffer entries = pieces.get(i);
+                entries.flip();
+                out.put(entries);
+                datagrams.add(Arrays.copyOf(out.array(), out.position()));
+            }
+            return datagrams;
+        }
+
+        // the entries in the rest of a fragment, after its header
+        public static void GetEntries(ByteBuffer datagram, RouteTable entries, NodeIds ids) {
+            while (datagram.hasRemaining()) {
+                int toId = ids.Id(GetVarint(datagram));
+                int neighborPort = GetVarint(datagram);
+                if (neighborPort == 0) {
+                    entries.Withdraw(toId);
+                }
+                else {
+                    entries.Put(toId, ids.Id(neighborPort), GetVarlong(datagram));
+                }
+            }
+        }
+
+        // 7 bits at a time, low bits first, the high bit set on all but the last byte
+        public static void PutVarint(ByteBuffer out, long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.put((byte)((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.put((byte)value);
+        }
+
+        public static int GetVarint(ByteBuffer in) {
+            return (int)GetVarlong(in);
+        }
+
+        public static long GetVarlong(ByteBuffer in) {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = in.get();
+                value |= (long)(b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+    }
+
+    // runs a whole network of DVNodes in this JVM, over in-memory links instead of sockets, in simulated time
+    // every datagram takes the link latency to arrive and handling it takes no time at all, so the
+    // convergence time is what the protocol needs, not what this machine can do, and it repeats exactly
+    private static class Simulator {
+
+        public static final String USAGE = "[topology ring|grid|random|scalefree] [nodes <n>] [degree <d>] [latency <ms>] [seed <n>] [check <n>] [degrade <cost>] [fail] [limit <s>] [DVNode options...]";
+
+        private String topology = "grid";
+        private int numNodes = 1000;
+        private int degree = 4; // average number of links per node, for random and scalefree
+        private int latencyMs = 1;
+        private long seed = 1;
+        private int numChecked = 20; // nodes whose final tables are checked against Dijkstra
+        private double degradedWeight = -1; // once converged, change one link to this cost (-1 doesn't)
+        private boolean failLink; // or take it down without telling anyone, only keepalives can tell
+        private long limitMs = 600000; // stop after this much simulated time, counting to infinity never ends
+
+        // without a holddown every node broadcasts each change on its own, which even a few hundred nodes can't
+        // finish in any practical time, so the simulator uses one unless it's given "holddown" (0 turns it off)
+        private static final String DEFAULT_HOLDDOWN_MS = "20";
+
+        // everything we don't know is handed to every node as DVNode options
+        private List<String> nodeArgs = new ArrayList<String>();
+        private Options options;
+
+        // the network, node ports are 1 to numNodes
+        private HashMap<Integer, HashMap<Integer, Double>> links = new HashMap<Integer, HashMap<Integer, Double>>();
+        private HashMap<Integer, DVNode> nodes = new HashMap<Integer, DVNode>();
+
+        // datagrams in flight, held broadcasts and keepalive timers, in time order (ties in the order they were
+        // scheduled), and how many of them aren't keepalives, which go on forever, so quiet is when there are none
+        private PriorityQueue<Event> events = new PriorityQueue<Event>();
+        private long now;
+        private long numScheduled;
+        private long numRouting;
+
+        // keepalives are counted apart, they don't depend on what the routing does
+        private long numDatagrams;
+        private long numBytes;
+        private long numKeepalives;
+
+        public static void Main(String[] args) {
+            Simulator simulator = new Simulator();
+            try {
+                simulator.Parse(args);
+                simulator.ParseNodeOptions(); // check these now, rather than after building the network
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+                System.err.println("Usage: DVNode simulate " + USAGE);
+                return;
+            }
+
+            simulator.Run();
+        }
+
+        private void Parse(String[] args) throws IllegalArgumentException {
+            for (int i = 0; i < args.length; i++) {
+                boolean hasValue = i + 1 < args.length;
+
+                if ("topology".equals(args[i]) && hasValue) {
+                    topology = args[++i];
+                    if (!Arrays.asList("ring", "grid", "random", "scalefree").contains(topology)) {
+                        throw new IllegalArgumentException("Unknown topology " + topology);
+                    }
+                }
+                else if ("nodes".equals(args[i]) && hasValue) {
+                    numNodes = ParseInt(args[++i], 2);
+                }
+                else if ("degree".equals(args[i]) && hasValue) {
+                    degree = ParseInt(args[++i], 2);
+                }
+                else if ("latency".equals(args[i]) && hasValue) {
+                    latencyMs = ParseInt(args[++i], 1);
+                }
+                else if ("seed".equals(args[i]) && hasValue) {
+                    seed = Long.parseLong(args[++i]);
+                }
+                else if ("check".equals(args[i]) && hasValue) {
+                    numChecked = ParseInt(args[++i], 0);
+                }
+                else if ("degrade".equals(args[i]) && hasValue) {
+                    degradedWeight = Double.parseDouble(args[++i]);
+                    if (degradedWeight <= 0) {
+                        throw new IllegalArgumentException("Arguments outside valid range.");
+                    }
+                }
+                else if ("fail".equals(args[i])) {
+                    failLink = true;
+                }
+                else if ("limit".equals(args[i]) && hasValue) {
+                    limitMs = ParseInt(args[++i], 1) * 1000L;
+                }
+                else {
+                    nodeArgs.add(args[i]);
+                }
+            }
+
+            if (!nodeArgs.contains("holddown")) {
+                nodeArgs.add("holddown");
+                nodeArgs.add(DEFAULT_HOLDDOWN_MS);
+            }
+        }
+
+        private static int ParseInt(String value, int min) throws IllegalArgumentException {
+            int parsed = Integer.parseInt(value);
+            if (parsed < min) {
+                throw new IllegalArgumentException("Arguments outside valid range.");
+            }
+            return parsed;
+        }
+
+        private Options ParseNodeOptions() throws IllegalArgumentException {
+            Options options = new Options();
+            String[] rest = Options.Parse(nodeArgs.toArray(new String[nodeArgs.size()]), options);
+            if (rest.length > 0) {
+                throw new IllegalArgumentException("Unknown argument " + rest[0]);
+            }
+            return options;
+        }
+
+        private void Run() {
+            Random random = new Random(seed);
+            BuildTopology(random);
+
+            int numLinks = 0;
+            for (HashMap<Integer, Double> nodeLinks : links.values()) {
+                numLinks += nodeLinks.size();
+            }
+            numLinks /= 2;
+
+            // thousands of nodes printing every table would take longer than the simulation
+            DvPrinting.Enabled = false;
+
+            long memoryBefore = UsedMemory();
+            long startTime = System.nanoTime();
+
+            options = ParseNodeOptions();
+            for (int port = 1; port <= numNodes; port++) {
+                nodes.put(port, new DVNode(port, links.get(port), options, this));
+            }
+
+            // like a real run, the last node to come up starts the flood
+            for (int port = 1; port <= numNodes; port++) {
+                nodes.get(port).Start(port == numNodes);
+            }
+
+            long numEvents = RunUntilQuiet(0);
+
+            double wallSeconds = (System.nanoTime() - startTime) / 1e9;
+            long memoryPerNode = (UsedMemory() - memoryBefore) / numNodes;
+
+            System.out.println("topology " + topology + ", " + numNodes + " nodes, " + numLinks + " links, " + latencyMs + " ms per link");
+            PrintConvergence(0, 0, 0, 0);
+            System.out.println("about " + memoryPerNode / 1024 + " KB of memory per node");
+            System.out.println(numEvents + " events in " + Round(wallSeconds) + " s (" + Math.round(numEvents / wallSeconds) + " per second)");
+            System.out.println(Check(random));
+
+            if ((degradedWeight < 0 && !failLink) || numRouting > 0) {
+                return;
+            }
+
+            // make one of the links a random node is most likely to route over a lot worse (or fail it), and start again
+            int port = 1 + random.nextInt(numNodes);
+            int other = 0;
+            for (Map.Entry<Integer, Double> link : links.get(port).entrySet()) {
+                if (other == 0 || link.getValue() < links.get(port).get(other)) {
+                    other = link.getKey();
+                }
+            }
+            double oldWeight = links.get(port).get(other);
+            double newWeight = failLink ? Double.POSITIVE_INFINITY : degradedWeight;
+            links.get(port).put(other, newWeight);
+            links.get(other).put(port, newWeight);
+
+            // the routes over it at both ends, and how many of them have a backup to switch to
+            int numRoutesOver = 0;
+            int numBackedUp = 0;
+            for (int[] end : new int[][] { { port, other }, { other, port } }) {
+                DVNode node = nodes.get(end[0]);
+                int otherId = node.ids.Find(end[1]);
+                for (int toId = 0; toId < node.routingTable.Length(); toId++) {
+                    if (node.routingTable.NextHop(toId) == otherId) {
+                        numRoutesOver++;
+                        if (node.routingTable.Backup(toId) != RouteTable.NONE) {
+                            numBackedUp++;
+                        }
+                    }
+                }
+            }
+
+            long changeTime = now;
+            long datagramsBefore = numDatagrams;
+            long bytesBefore = numBytes;
+            long keepalivesBefore = numKeepalives;
+            if (!failLink) {
+                nodes.get(port).ChangeLink(other, degradedWeight);
+                nodes.get(other).ChangeLink(port, degradedWeight);
+            }
+            RunUntilQuiet(failLink ? changeTime + options.DetectMs : 0);
+
+            System.out.println();
+            if (!failLink) {
+                System.out.println("link " + port + "-" + other + " went from " + oldWeight + " to " + degradedWeight);
+            }
+            else if (options.KeepaliveMs == 0) {
+                System.out.println("link " + port + "-" + other + " failed, nobody can tell without keepalives");
+            }
+            else {
+                long detected = Math.max(nodes.get(port).neighborDownTime, nodes.get(other).neighborDownTime) - changeTime;
+                System.out.println("link " + port + "-" + other + " failed, both ends found out after " + detected + " ms");
+                System.out.println(numBackedUp + " of the " + numRoutesOver + " routes over it switched to a backup then");
+            }
+            PrintConvergence(changeTime, datagramsBefore, bytesBefore, keepalivesBefore);
+            System.out.println(Check(random));
+        }
+
+        // handle events until there is no more routing work, and at least until the given time,
+        // or until the time limit, returns how many there were
+        private long RunUntilQuiet(long until) {
+            long numEvents = 0;
+            while (!events.isEmpty() && events.peek().Time <= limitMs && (numRouting > 0 || events.peek().Time <= until)) {
+                Event event = events.poll();
+                now = event.Time;
+                numEvents++;
+                if (!event.Keepalive) {
+                    numRouting--;
+                }
+
+                if (event.Data != null) {
+                    event.Node.HandleDatagram(event.FromPort, event.Data, event.Data.length);
+                }
+                else if (event.Keepalive) {
+                    event.Node.KeepaliveTimer();
+                }
+                else {
+                    event.Node.BroadcastIfDue();
+                }
+            }
+            return numEvents;
+        }
+
+        // how long it took since the given time to converge, and how many datagrams and bytes that took
+        private void PrintConvergence(long startTime, long datagramsBefore, long bytesBefore, long keepalivesBefore) {
+            long convergenceTime = 0;
+            for (DVNode node : nodes.values()) {
+                convergenceTime = Math.max(convergenceTime, node.lastTableChangeTime - startTime);
+            }
+            long datagrams = numDatagrams - datagramsBefore;
+            long bytes = numBytes - bytesBefore;
+
+            if (numRouting > 0) {
+                System.out.println("still not quiet after the " + limitMs / 1000 + " s limit (simulated), last change at " + convergenceTime + " ms");
+            }
+            else {
+                System.out.println("converged in " + convergenceTime + " ms, quiet after " + (now - startTime) + " ms (simulated)");
+            }
+            System.out.println(datagrams + " datagrams, " + bytes + " bytes (" + datagrams / numNodes + " datagrams, " + bytes / numNodes + " bytes per node)");
+            if (numKeepalives > keepalivesBefore) {
+                System.out.println("and " + (numKeepalives - keepalivesBefore) + " keepalives");
+            }
+        }
+
+        // the simulated time in ms
+        public long Now() {
+            return now;
+        }
+
+        // a datagram from one node to another, cut off at what a real receiver would read
+        public void Send(int fromPort, int toPort, byte[] data) {
+            // nothing gets over a link that is down
+            DVNode node = nodes.get(toPort);
+            if (node == null || RouteTable.Milli(links.get(fromPort).get(toPort)) >= options.Infinity) {
+                return;
+            }
+
+            boolean keepalive = IsKeepalive(data, data.length);
+            if (keepalive) {
+                numKeepalives++;
+            }
+            else {
+                numDatagrams++;
+                numBytes += data.length;
+            }
+
+            if (data.length > DvBinary.MAX_DATAGRAM_SIZE) {
+                data = Arrays.copyOf(data, DvBinary.MAX_DATAGRAM_SIZE);
+            }
+            Add(new Event(now + latencyMs, numScheduled++, node, fromPort, data, keepalive));
+        }
+
+        // a held broadcast that may be due at this time
+        public void Schedule(DVNode node, long time) {
+            Add(new Event(time, numScheduled++, node, 0, null, false));
+        }
+
+        // the node's keepalive timer
+        public void ScheduleKeepalive(DVNode node, long time) {
+            Add(new Event(time, numScheduled++, node, 0, null, true));
+        }
+
+        private void Add(Event event) {
+            events.add(event);
+            if (!event.Keepalive) {
+                numRouting++;
+            }
+        }
+
+        private void BuildTopology(Random random) {
+            for (int port = 1; port <= numNodes; port++) {
+                links.put(port, new HashMap<Integer, Double>());
+            }
+
+            if ("ring".equals(topology)) {
+                for (int port = 1; port <= numNodes; port++) {
+                    AddLink(port, port % numNodes + 1, random);
+                }
+            }
+            else if ("grid".equals(topology)) {
+                // as square as it gets, the last row may be short
+                int columns = (int)Math.ceil(Math.sqrt(numNodes));
+                for (int i = 0; i < numNodes; i++) {
+                    if ((i + 1) % columns != 0 && i + 1 < numNodes) {
+                        AddLink(i + 1, i + 2, random);
+                    }
+                    if (i + columns < numNodes) {
+                        AddLink(i + 1, i + columns + 1, random);
+                    }
+                }
+            }
+            else if ("random".equals(topology)) {
+                // a random tree so everything is connected, then random links up to the degree
+                for (int port = 2; port <= numNodes; port++) {
+                    AddLink(port, 1 + random.nextInt(port - 1), random);
+                }
+                long numLinks = numNodes - 1;
+                while (numLinks < (long)numNodes * degree / 2) {
+                    if (AddLink(1 + random.nextInt(numNodes), 1 + random.nextInt(numNodes), random)) {
+                        numLinks++;
+                    }
+                }
+            }
+            else {
+                // Barabasi-Albert: each new node links to degree / 2 others, picked in proportion to
+                // how many links they have already (every link end is in the list once)
+                int newLinks = Math.max(1, degree / 2);
+                List<Integer> linkEnds = new ArrayList<Integer>();
+                for (int port = 2; port <= Math.min(numNodes, newLinks + 1); port++) {
+                    for (int other = 1; other < port; other++) {
+                        AddLink(port, other, random);
+                        linkEnds.add(port);
+                        linkEnds.add(other);
+                    }
+                }
+                for (int port = newLinks + 2; port <= numNodes; port++) {
+                    int added = 0;
+                    while (added < newLinks) {
+                        int other = linkEnds.get(random.nextInt(linkEnds.size()));
+                        if (AddLink(port, other, random)) {
+                            linkEnds.add(port);
+                            linkEnds.add(other);
+                            added++;
+                        }
+                    }
+                }
+            }
+        }
+
+        // a link with a random weight from 1.0 to 9.9, false if there already is one
+        private boolean AddLink(int a, int b, Random random) {
+            if (a == b || links.get(a).containsKey(b)) {
+                return false;
+            }
+            double weight = (10 + random.nextInt(90)) / 10.0;
+            links.get(a).put(b, weight);
+            links.get(b).put(a, weight);
+            return true;
+        }
+
+        // compare some nodes' final tables with what Dijkstra says they should be
+        private String Check(Random random) {
+            int numWrong = 0;
+            numChecked = Math.min(numChecked, numNodes);
+
+            for (int i = 0; i < numChecked; i++) {
+                int source = 1 + random.nextInt(numNodes);
+                HashMap<Integer, Double> distances = Dijkstra(source);
+                distances.remove(source);
+
+                // too far is unreachable
+                Iterator<Double> tooFar = distances.values().iterator();
+                while (tooFar.hasNext()) {
+                    if (RouteTable.Milli(tooFar.next()) >= options.Infinity) {
+                        tooFar.remove();
+                    }
+                }
+
+                DVNode node = nodes.get(source);
+                boolean right = node.routingTable.Size() == distances.size();
+                for (Map.Entry<Integer, Double> distance : distances.entrySet()) {
+                    int id = node.ids.Find(distance.getKey());
+                    right &= id != RouteTable.NONE && node.routingTable.Has(id) && node.routingTable.Weight(id) == RouteTable.Milli(distance.getValue());
+                }
+                if (!right) {
+                    numWrong++;
+                }
+            }
+
+            return "checked " + numChecked + " tables against Dijkstra, " + numWrong + " wrong";
+        }
+
+        private HashMap<Integer, Double> Dijkstra(int source) {
+            HashMap<Integer, Double> distances = new HashMap<Integer, Double>();
+            PriorityQueue<double[]> queue = new PriorityQueue<double[]>(11, new Comparator<double[]>() {
+                @Override
+                public int compare(double[] a, double[] b) {
+                    return Double.compare(a[0], b[0]);
+                }
+            });
+
+            queue.add(new double[] { 0, source });
+            while (!queue.isEmpty()) {
+                double[] next = queue.poll();
+                int port = (int)next[1];
+                if (distances.containsKey(port)) {
+                    continue;
+                }
+                distances.put(port, next[0]);
+
+                for (Map.Entry<Integer, Double> link : links.get(port).entrySet()) {
+                    if (!distances.containsKey(link.getKey()) && RouteTable.Milli(link.getValue()) < options.Infinity) {
+                        queue.add(new double[] { next[0] + link.getValue(), link.getKey() });
+                    }
+                }
+            }
+            return distances;
+        }
+
+        private static long UsedMemory() {
+            Runtime runtime = Runtime.getRuntime();
+            runtime.gc();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+
+        private static double Round(double value) {
+            return (double)Math.round(value * 1000)/1000; // round to 3 decimal places
+        }
+
+        // a datagram arriving, or with no data, a held broadcast coming due or the keepalive timer
+        private static class Event implements Comparable<Event> {
+            public final long Time;
+            public final long Sequence;
+            public final DVNode Node;
+            public final int FromPort;
+            public final byte[] Data;
+            public final boolean Keepalive;
+
+            public Event(long time, long sequence, DVNode node, int fromPort, byte[] data, boolean keepalive) {
+                Time = time;
+                Sequence = sequence;
+                Node = node;
+                FromPort = fromPort;
+                Data = data;
+                Keepalive = keepalive;
+            }
+
+            @Override
+            public int compareTo(Event other) {
+                if (Time != other.Time) {
+                    return Long.compare(Time, other.Time);
+                }
+                return Long.compare(Sequence, other.Sequence);
+            }
+        }
+    }
+
+    // defines what we print for the DV component
+    private static class DvPrinting {
+
+        // off in the simulator, where nobody reads thousands of nodes' output
+        public static boolean Enabled = true;
+
+        public static void PrintSendMessage(int sourceNodePort, int destNodePort) {
+            if (!Enabled) {
+                return;
+            }
+            long timestamp = Calendar.getInstance().getTimeInMillis();
+            String toPrint = "[" + timestamp + "] Message sent from Node " + sourceNodePort + " to Node " + destNodePort;
+            System.out.println(toPrint);
+        }
+
+        public static void PrintRcvMessage(int destNodePort, int sourceNodePort) {
+            if (!Enabled) {
+                return;
+            }
+            long timestamp = Calendar.getInstance().getTimeInMillis();
+            String toPrint = "[" + timestamp + "] Message received at Node " + destNodePort + " from Node " + sourceNodePort;
+            System.out.println(toPrint);
+        }
+
+        public static void PrintNeighborDown(int nodePort, int neighborPort) {
+            if (!Enabled) {
+                return;
+            }
+            long timestamp = Calendar.getInstance().getTimeInMillis();
+            System.out.println("[" + timestamp + "] Node " + nodePort + " - Neighbor " + neighborPort + " is down");
+        }
+
+        public static void PrintNeighborUp(int nodePort, int neighborPort) {
+            if (!Enabled) {
+                return;
+            }
+            long timestamp = Calendar.getInstance().getTimeInMillis();
+            System.out.println("[" + timestamp + "] Node " + nodePort + " - Neighbor " + neighborPort + " is up again");
+        }
+
+        public static void PrintRoutingTable(int nodePort, RouteTable routingTable, NodeIds ids) {
+            if (!Enabled) {
+                return;
+            }
+            long timestamp = Calendar.getInstance().getTimeInMillis();
+            StringBuilder toPrint = new StringBuilder("[" + timestamp + "] Node " + nodePort + " - Routing Table");
+            for (int toId = 0; toId < routingTable.Length(); toId++) {
+                if (!routingTable.Has(toId)) {
+                    continue;
+                }
+                double weight = RouteTable.FromMilli(routingTable.Weight(toId));
+                if (toId == routingTable.NextHop(toId)) {
+                    toPrint.append("\nNode ").append(ids.Port(toId)).append(" -> (").append(weight).append(")");
                 }
                 else {
-                    toPrint += "\nNode " + entry.ToPort + " [next " + entry.NeighborPort + "] -> (" + entry.Weight + ")";
+                    toPrint.append("\nNode ").append(ids.Port(toId)).append(" [next ").append(ids.Port(routingTable.NextHop(toId))).append("] -> (").append(weight).append(")");
                 }
             }
             System.out.println(toPrint);
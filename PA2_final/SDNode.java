@@ -1,6 +1,7 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class SDNode {
 
@@ -9,6 +10,10 @@ public class SDNode {
         boolean last;
 
         try {
+            // pull out optional flags first, the rest are the usual arguments
+            Options options = new Options();
+            args = Options.Parse(args, options);
+
             int port = Integer.parseInt(args[0]);
 
             HashMap<Integer, Double> neighbors = new HashMap<Integer, Double>();
@@ -25,12 +30,12 @@ public class SDNode {
                 neighbors.put(nPort, nLossRate);
             }
 
-            node = new SDNode(port, neighbors);
+            node = new SDNode(port, neighbors, options);
             last = "last".equals(args[args.length - 1]);
         }
         catch (Exception e) {
             e.printStackTrace();
-            System.err.println("Usage: <port-number> <neighbor1port> <neighbor1lossrate> .... <neighboriport> <neighborilossrate> [last]?");
+            System.err.println("Usage: <port-number> <neighbor1port> <neighbor1lossrate> .... <neighboriport> <neighborilossrate> [last]? [seed <n>] [burst <mean-length>] [coalesce <ms>] [routing dv|ls] [keepalive <ms>] [detect <ms>] [hold <ms>] [infinity <cost>] [ecmp <tolerance>]");
             return;
         }
 
@@ -48,8 +53,17 @@ public class SDNode {
     // marker for if we did at least 1 DV broadcast
     private boolean sentBroadcast;
 
+    // computes the routing table, distance vector or link state, see Options
+    private RoutingEngine routing;
+
+    // every node we know of gets a dense id, so the routing table is arrays (see RouteTable)
+    private NodeIds ids = new NodeIds();
+
     // routing table for this node
-    private HashMap<Integer, RoutingTableEntry> routingTable = new HashMap<Integer, RoutingTableEntry>();
+    private RouteTable routingTable = new RouteTable();
+
+    // with keepalives, distance vector destinations whose route got worse or went away, by id, see HoldDown
+    private HashMap<Integer, HoldDown> holdDowns = new HashMap<Integer, HoldDown>();
 
     // neighbor information
     private HashMap<Integer, Neighbor> neighbors = new HashMap<Integer, Neighbor>();
@@ -58,11 +72,31 @@ public class SDNode {
     private SendCommand currentSend;
     private HashMap<String, SendStat> sendStatistics = new HashMap<String, SendStat>();
 
+    // with ECMP, how many packets of each send that was split up on the way have made it here, by
+    // "<source-node>,<total-packets>", see SendSpread
+    private HashMap<String, Integer> spreadPacketsReceived = new HashMap<String, Integer>();
+
     // lock needed because we receive udp messages on a different thread
     private static final Object udpLock = new Object();
 
+    // in-order packets SR has handed up, waiting for the delivery thread
+    // unbounded on purpose, the udp thread must never block here or ACKs would stop too
+    private final BlockingQueue<Runnable> deliveries = new LinkedBlockingQueue<Runnable>();
+
+    // optional flags from the command line
+    private Options options;
+
+    // sends the control messages each SRNode has been holding, once their coalesce time is up,
+    // and ends hold downs
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor();
+
     public SDNode(int port, HashMap<Integer, Double> neighbors) throws SocketException {
+        this(port, neighbors, new Options());
+    }
+
+    public SDNode(int port, HashMap<Integer, Double> neighbors, Options options) throws SocketException {
         this.sourcePort = port;
+        this.options = options;
 
         this.socket = new DatagramSocket(port);
 
@@ -70,6 +104,8 @@ public class SDNode {
             Neighbor n = new Neighbor(neighbor.getKey(), neighbor.getValue());
             this.neighbors.put(n.Port, n);
         }
+
+        routing = options.LinkState ? new LinkState() : new DistanceVector();
     }
 
     // *********************************************
@@ -80,17 +116,26 @@ public class SDNode {
     public void Initialize(boolean isLast) {
 
         // set up the routing table
-        EnsureRoutingTableIsUpdated();
+        routing.Start();
 
         // print the routing table
-        DvPrinting.PrintRoutingTable(sourcePort, routingTable);
+        DvPrinting.PrintRoutingTable(sourcePort, routingTable, ids);
 
         // listen for incoming udp on another thread, do this before broadcast
         new Thread(new UdpListener(socket)).start();
 
+        // deliver messages to ourselves on one more thread, in the order SR hands them up
+        new Thread(new MessageDeliverer()).start();
+
+        // say hello to the neighbors and notice the ones that stop, on one more thread
+        // before the broadcast, which waits for its ACKs
+        if (options.KeepaliveMs > 0) {
+            new Thread(new KeepaliveSender()).start();
+        }
+
         // start broadcast if we're last
         if (isLast) {
-            Broadcast();
+            routing.Announce();
         }
 
         // listen for user input on another thread
@@ -126,18 +171,16 @@ public class SDNode {
             n.SrNode.SendMessage(message, false);
         }
 
-        // now all neighbors have been informed of new loss rate and have ACKed, so kickoff DV
-        if (EnsureRoutingTableIsUpdated()) {
-            DvPrinting.PrintRoutingTable(sourcePort, routingTable);
-            Broadcast();
-        }
+        // now all neighbors have been informed of new loss rate and have ACKed, so kickoff DV (or LS)
+        routing.LinksChanged();
     }
 
     // do the "send" command
     private void DoSendCommand(int destPort, int numPackets) {
 
         // ignore send to nodes we can't reach
-        if (!routingTable.containsKey(destPort)) {
+        int destId = ids.Find(destPort);
+        if (destId == RouteTable.NONE || !routingTable.Has(destId)) {
             System.out.println("Oops, cannot send to " + destPort);
             return;
         }
@@ -150,9 +193,11 @@ public class SDNode {
 
         currentSend = new SendCommand(destPort, numPackets);
 
-        // we're going to send to each neighbor
-        for (int neighborPort : neighbors.keySet()) {
-            currentSend.NeighborsToSend.add(neighborPort);
+        // we're going to send to each neighbor that's up
+        for (Neighbor neighbor : neighbors.values()) {
+            if (neighbor.Up) {
+                currentSend.NeighborsToSend.add(neighbor.Port);
+            }
         }
 
         // send to first neighbor
@@ -165,23 +210,32 @@ public class SDNode {
     // send completes, until we've checked all neighbors
     private void SendToNextNeighbor() {
 
-        // if we've sent to everyone, we're done!
-        if (currentSend.NeighborsToSend.isEmpty()) {
-            currentSend = null;
-            return;
-        }
-
         String message = MessageCreator.Send(sourcePort, currentSend.FinalDestPort, currentSend.NumPackets);
 
-        currentSend.NeighborPort = currentSend.NeighborsToSend.remove(0); // get next neighbor
-        currentSend.StartTime = Calendar.getInstance().getTimeInMillis(); // mark start time
+        while (true) {
+            // if we've sent to everyone, we're done!
+            if (currentSend.NeighborsToSend.isEmpty()) {
+                currentSend = null;
+                return;
+            }
+
+            currentSend.NeighborPort = currentSend.NeighborsToSend.remove(0); // get next neighbor
+            currentSend.StartTime = Calendar.getInstance().getTimeInMillis(); // mark start time
 
-        neighbors.get(currentSend.NeighborPort).SrNode.SendRandomPackets(currentSend.NumPackets, message);
+            // no timestamp is coming back from a neighbor that went down, so tell the routing and go on to the next one
+            Neighbor neighbor = neighbors.get(currentSend.NeighborPort);
+            if (neighbor.SrNode.SendRandomPackets(currentSend.NumPackets, message)) {
+                return;
+            }
+            synchronized (udpLock) {
+                UpdateNeighborState(neighbor);
+            }
+        }
     }
 
     // this gets hit when selective repeat (SRNode) has a set of in-order
     // packets ready to be delivered
-    private void MessageDeliveryFromSR(int fromPort, String message, int numReceivedSinceLastDeliver){
+    private void MessageDeliveryFromSR(int fromPort, String message, int numReceivedSinceLastDeliver, int numDroppedSinceLastDeliver){
 
         String[] msgParts = message.split(MessageCreator.PREFIX_DELIM);
         String prefix = msgParts[0];
@@ -190,11 +244,11 @@ public class SDNode {
         if (MessageCreator.CHANGE_PREFIX.equals(prefix)) {
             HandleChangeFromNeighbor(fromPort, realMessage);
         }
-        else if (MessageCreator.BROADCAST_PREFIX.equals(prefix)) {
-            HandleDvFromNeighbor(fromPort, realMessage);
+        else if (routing.Prefix().equals(prefix)) {
+            routing.HandleMessage(fromPort, realMessage);
         }
         else if (MessageCreator.SEND_PREFIX.equals(prefix)) {
-            HandleSendFromNeighbor(fromPort, realMessage, numReceivedSinceLastDeliver);
+            HandleSendFromNeighbor(fromPort, realMessage, numReceivedSinceLastDeliver, numDroppedSinceLastDeliver);
         }
         else if (MessageCreator.END_OF_SEND_PREFIX.equals(prefix)) {
             HandleEndOfSendFromNeighbor(realMessage);
@@ -217,10 +271,7 @@ public class SDNode {
         neighbors.get(neighborPort).UpdateLossRate(newLossRate);
 
         // update the routing table and broadcast if necessary
-        if (EnsureRoutingTableIsUpdated()) {
-            DvPrinting.PrintRoutingTable(sourcePort, routingTable);
-            Broadcast();
-        }
+        routing.LinksChanged();
     }
 
     // handle a distance vector update from a neighbor
@@ -229,7 +280,7 @@ public class SDNode {
         // print that we received an update
         DvPrinting.PrintRcvMessage(sourcePort, fromPort);
 
-        HashMap<Integer, RoutingTableEntry> neighborRoutingTable = new HashMap<Integer, RoutingTableEntry>();
+        RouteTable neighborRoutingTable = new RouteTable();
 
         // parse the message into the neighbors routing table
         try {
@@ -240,11 +291,11 @@ public class SDNode {
 
                 String[] entryParts = entryString.split(",");
 
-                int toPort = Integer.parseInt(entryParts[0]);
-                int neighborPort = Integer.parseInt(entryParts[1]);
-                double weight = Double.parseDouble(entryParts[2]);
+                int toId = ids.Id(Integer.parseInt(entryParts[0]));
+                int nextHop = ids.Id(Integer.parseInt(entryParts[1]));
+                long weight = RouteTable.Milli(Double.parseDouble(entryParts[2]));
 
-                neighborRoutingTable.put(toPort, new RoutingTableEntry(toPort, neighborPort, weight));
+                neighborRoutingTable.Put(toId, nextHop, weight);
             }
         }
         catch (Exception e) {
@@ -257,7 +308,7 @@ public class SDNode {
 
         // update routing table - if it changed print and broadcast
         if (EnsureRoutingTableIsUpdated()) {
-            DvPrinting.PrintRoutingTable(sourcePort, routingTable);
+            DvPrinting.PrintRoutingTable(sourcePort, routingTable, ids);
             Broadcast();
         }
         else if (!sentBroadcast) { // we need to broadcast at least once or DV initialization fails
@@ -268,17 +319,23 @@ public class SDNode {
     // handle a send update from neighbor
     // once we've received all packets, either forward to next neighbor
     // or print statistics and send pack "timestamp packet"
-    private void HandleSendFromNeighbor(int fromPort, String message, int numReceivedSinceLastDeliver) {
+    private void HandleSendFromNeighbor(int fromPort, String message, int numReceivedSinceLastDeliver, int numDroppedSinceLastDeliver) {
 
         String[] parts = message.split(",");
         int originalSourcePort;
         int finalDestPort;
         int numPackets;
 
+        // a batch of a send split up with ECMP also has the packets in the whole send and its own id
+        int totalPackets;
+        String batch;
+
         try {
             originalSourcePort = Integer.parseInt(parts[0]);
             finalDestPort = Integer.parseInt(parts[1]);
             numPackets = Integer.parseInt(parts[2]);
+            totalPackets = parts.length > 3 ? Integer.parseInt(parts[3]) : numPackets;
+            batch = parts.length > 4 ? parts[4] : null;
         }
         catch (Exception e) {
             // received an improperly formatted message, which should never happen - just ignore it
@@ -286,13 +343,14 @@ public class SDNode {
         }
 
         if (!sendStatistics.containsKey(message)) {
-            SendStat stat = new SendStat(message, 1, numReceivedSinceLastDeliver);
+            SendStat stat = new SendStat(message, 1, numReceivedSinceLastDeliver, numDroppedSinceLastDeliver);
             sendStatistics.put(message, stat);
         }
         else {
             SendStat currentStat = sendStatistics.get(message);
             currentStat.NumValidReceived++;
             currentStat.TotalNumReceived += numReceivedSinceLastDeliver;
+            currentStat.TotalNumDropped += numDroppedSinceLastDeliver;
         }
 
         SendStat stat = sendStatistics.get(message);
@@ -308,21 +366,35 @@ public class SDNode {
         // 3. if yes, send final timestamp back to original source port via routing table
         // 4. if no, start sending according to routing table
 
-        // print out statistics then clear them
+        // print out statistics, with how many of the same datagrams the loss model dropped, then clear them
         SdPrinting.PrintFinishReceiving(fromPort, stat.TotalNumReceived, stat.GetLossRate());
+        SdPrinting.PrintLossStats(fromPort, stat.TotalNumDropped, stat.TotalNumReceived);
         sendStatistics.remove(message);
 
         if (finalDestPort == sourcePort) {
+            // a send that was split up is only done once every batch is here
+            if (batch != null) {
+                String key = originalSourcePort + "," + totalPackets;
+                int received = numPackets + (spreadPacketsReceived.containsKey(key) ? spreadPacketsReceived.get(key) : 0);
+                if (received < totalPackets) {
+                    spreadPacketsReceived.put(key, received);
+                    return;
+                }
+                spreadPacketsReceived.remove(key);
+            }
+
             // send the final timestamp back to original source using routing table
             String msgToSend = MessageCreator.EndOfSend(originalSourcePort);
-            int neighborPort = routingTable.get(originalSourcePort).NeighborPort;
-            neighbors.get(neighborPort).SrNode.SendMessage(msgToSend, true);
+            SendAlongRoute(originalSourcePort, msgToSend, 0);
+        }
+        else if (routingTable.Paths(ids.Find(finalDestPort)) != null) {
+            // more than one next hop is (about) as good, so they all get a share
+            SendSpread(originalSourcePort, finalDestPort, numPackets, totalPackets, batch == null ? "0" : batch);
         }
         else {
             // forward message using routing table
             String msgToSend = MessageCreator.Send(message);
-            int neighborPort = routingTable.get(finalDestPort).NeighborPort;
-            neighbors.get(neighborPort).SrNode.SendRandomPackets(numPackets, msgToSend);
+            SendAlongRoute(finalDestPort, msgToSend, numPackets);
         }
 
     }
@@ -362,144 +434,1092 @@ public class SDNode {
         else {
             // not for me, so just forward it along
             String msgToSend = MessageCreator.EndOfSend(message);
-            int neighborPort = routingTable.get(originalSourcePort).NeighborPort;
-            neighbors.get(neighborPort).SrNode.SendMessage(msgToSend, true);
+            SendAlongRoute(originalSourcePort, msgToSend, 0);
+        }
+
+    }
+
+    // the neighbor the route to a node starts with
+    private int NextHopPort(int destPort) {
+        return ids.Port(routingTable.NextHop(ids.Find(destPort)));
+    }
+
+    // send the random packets of a "send" (or a message, with 0 packets) to the neighbor the route to destPort starts with
+    // if that neighbor goes down while we wait for its ACKs, the routing hears about it right here
+    // instead of after this send, and we try again along the route it switches to
+    private void SendAlongRoute(int destPort, String message, int numPackets) {
+        while (true) {
+            if (!routingTable.Has(ids.Find(destPort))) {
+                System.out.println("Oops, cannot send to " + destPort);
+                return;
+            }
+
+            Neighbor neighbor = neighbors.get(NextHopPort(destPort));
+            boolean sent = numPackets > 0 ? neighbor.SrNode.SendRandomPackets(numPackets, message) : neighbor.SrNode.SendMessage(message, true);
+            if (sent) {
+                return;
+            }
+            UpdateNeighborState(neighbor);
+        }
+    }
+
+    // with ECMP, the packets of a "send" are dealt out round robin over every next hop to the destination, each share
+    // as a batch of its own (see MessageCreator.Send), and they all go out at once, so parallel paths carry it in parallel
+    // a batch whose neighbor goes down on the way goes again along the route that replaces it
+    private void SendSpread(int originalSourcePort, int finalDestPort, int numPackets, int totalPackets, String batch) {
+        // the routing table may have changed since HandleSendFromNeighbor looked
+        int[] hops = routingTable.Paths(ids.Find(finalDestPort));
+        if (hops == null) {
+            SendAlongRoute(finalDestPort, MessageCreator.Send(originalSourcePort, finalDestPort, numPackets, totalPackets, batch), numPackets);
+            return;
+        }
+
+        List<Neighbor> to = new ArrayList<Neighbor>();
+        List<String> messages = new ArrayList<String>();
+        List<Integer> counts = new ArrayList<Integer>();
+        for (int i = 0; i < hops.length; i++) {
+            int count = numPackets / hops.length + (i < numPackets % hops.length ? 1 : 0);
+            if (count == 0) {
+                continue;
+            }
+            to.add(neighbors.get(ids.Port(hops[i])));
+            messages.add(MessageCreator.Send(originalSourcePort, finalDestPort, count, totalPackets, batch + "-" + i));
+            counts.add(count);
+        }
+
+        for (int i : SendRandomPacketsToAll(to, messages, counts)) {
+            UpdateNeighborState(to.get(i));
+            SendAlongRoute(finalDestPort, messages.get(i), counts.get(i));
+        }
+    }
+
+    // like SRNode.SendRandomPackets, for several neighbors at once with one wait loop for all of them,
+    // returns the indexes of the ones that went down before they ACKed everything
+    private List<Integer> SendRandomPacketsToAll(List<Neighbor> to, List<String> messages, List<Integer> counts) {
+        List<Integer> failed = new ArrayList<Integer>();
+
+        SdPrinting.PrintStartSending(sourcePort);
+
+        synchronized (udpLock) {
+            List<SRNode> sending = new ArrayList<SRNode>();
+            for (int i = 0; i < to.size(); i++) {
+                SRNode srNode = to.get(i).SrNode;
+                if (srNode.closed || !to.get(i).Alive) {
+                    failed.add(i);
+                    sending.add(null);
+                    continue;
+                }
+                srNode.StartSending(srNode.RandomPackets(counts.get(i), messages.get(i)));
+                sending.add(srNode);
+            }
+
+            while (true) {
+                // check for timeouts every 10ms, like SendPacketsImpl
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    // if the thread gets aborted, we're screwed
+                }
+
+                boolean done = true;
+                for (int i = 0; i < sending.size(); i++) {
+                    SRNode srNode = sending.get(i);
+                    if (srNode == null || srNode.NothingInFlight()) {
+                        continue;
+                    }
+                    if (srNode.closed) {
+                        failed.add(i);
+                        sending.set(i, null);
+                        continue;
+                    }
+                    srNode.ResendTimedOut();
+                    done = false;
+                }
+                if (done) {
+                    break;
+                }
+            }
         }
 
+        SdPrinting.PrintFinishSending(sourcePort);
+        return failed;
+    }
+
+    // tell the routing a neighbor went down or came back, if the keepalives found out and it doesn't know yet
+    // runs with udpLock held, like everything else that touches the routing table
+    private void UpdateNeighborState(Neighbor neighbor) {
+        if (neighbor.Up && !neighbor.Alive) {
+            neighbor.Up = false;
+            routing.NeighborDown(neighbor);
+        }
+        else if (!neighbor.Up && neighbor.Alive) {
+            neighbor.Up = true;
+            routing.NeighborUp(neighbor);
+        }
     }
 
     // updates routing table based on neighbor info, returns true if table changed
     private boolean EnsureRoutingTableIsUpdated() {
 
-        HashMap<Integer, RoutingTableEntry> newRoutingTable = new HashMap<Integer, RoutingTableEntry>();
+        RouteTable newRoutingTable = new RouteTable();
+
+        long now = Calendar.getInstance().getTimeInMillis();
+        Iterator<HoldDown> expired = holdDowns.values().iterator();
+        while (expired.hasNext()) {
+            if (expired.next().Until <= now) {
+                expired.remove();
+            }
+        }
 
         // initialize routing table with direct neighbor links
         for (Neighbor neighbor : neighbors.values()) {
-            RoutingTableEntry entry = new RoutingTableEntry(neighbor.Port, neighbor.Port, neighbor.Weight);
-            newRoutingTable.put(entry.ToPort, entry);
+            if (neighbor.Up && neighbor.Weight < options.Infinity) {
+                newRoutingTable.Put(neighbor.Id, neighbor.Id, neighbor.Weight);
+            }
         }
 
         // examine each neighbors routes and update ours accordingly
         for (Neighbor neighbor : neighbors.values()) {
-            for (RoutingTableEntry neighborEntry : neighbor.Routes.values()) {
-                RoutingTableEntry newEntry = new RoutingTableEntry(neighborEntry.ToPort, neighbor.Port, neighborEntry.Weight + neighbor.Weight);
+            if (!neighbor.Up) {
+                continue;
+            }
+            for (int toId = 0; toId < neighbor.Routes.Length(); toId++) {
+                if (!neighbor.Routes.Has(toId)) {
+                    continue;
+                }
 
-                // if we don't have this route yet, add it
-                if (!newRoutingTable.containsKey(newEntry.ToPort)) {
-                    newRoutingTable.put(newEntry.ToPort, newEntry);
+                // while the destination is held down, only neighbors closer than we were count
+                if (!IsFeasible(toId, neighbor.Routes.Weight(toId))) {
+                    continue;
                 }
-                else { // otherwise only add it if it's better
-                    RoutingTableEntry existingEntry = newRoutingTable.get(neighborEntry.ToPort);
-                    if (newEntry.Weight < existingEntry.Weight) {
-                        newRoutingTable.put(newEntry.ToPort, newEntry);
-                    }
+
+                // add it if we don't have this route yet, otherwise only if it's better
+                // routes that add up to infinity are ones that were counting up after a node went away
+                long weight = neighbor.Routes.Weight(toId) + neighbor.Weight;
+                if (weight < options.Infinity && (!newRoutingTable.Has(toId) || weight < newRoutingTable.Weight(toId))) {
+                    newRoutingTable.Put(toId, neighbor.Id, weight);
                 }
             }
         }
 
-        // see if there are any differences between our new and old routing table
-        boolean updated = false;
-        for (RoutingTableEntry newEntry : newRoutingTable.values()) {
-            if (!routingTable.containsKey(newEntry.ToPort)) {
-                updated = true;
-                break;
+        if (options.KeepaliveMs > 0) {
+            for (int toId = 0; toId < newRoutingTable.Length(); toId++) {
+                if (newRoutingTable.Has(toId)) {
+                    newRoutingTable.SetBackup(toId, LoopFreeAlternate(toId, newRoutingTable.NextHop(toId), newRoutingTable.Weight(toId)));
+                }
             }
-            RoutingTableEntry existingEntry = routingTable.get(newEntry.ToPort);
-            if (existingEntry.NeighborPort != newEntry.NeighborPort || existingEntry.Weight != newEntry.Weight) {
-                updated = true;
-                break;
+            for (int toId = 0; toId < routingTable.Length(); toId++) {
+                if (routingTable.Has(toId) && (!newRoutingTable.Has(toId) || newRoutingTable.Weight(toId) > routingTable.Weight(toId))) {
+                    StartHoldDown(toId, routingTable.Weight(toId));
+                }
+            }
+        }
+
+        // with ECMP, the other neighbors whose route is (about) as good as the best one
+        if (options.Ecmp) {
+            for (int toId = 0; toId < newRoutingTable.Length(); toId++) {
+                if (!newRoutingTable.Has(toId)) {
+                    continue;
+                }
+
+                List<Integer> hops = new ArrayList<Integer>();
+                hops.add(newRoutingTable.NextHop(toId));
+                for (Neighbor neighbor : neighbors.values()) {
+                    if (neighbor.Id == newRoutingTable.NextHop(toId) || !neighbor.Up || (neighbor.Id != toId && !neighbor.Routes.Has(toId))) {
+                        continue;
+                    }
+                    long neighborDistance = neighbor.Id == toId ? 0 : neighbor.Routes.Weight(toId);
+                    if (IsFeasible(toId, neighborDistance) && IsEqualCost(neighbor.Weight, neighborDistance, newRoutingTable.Weight(toId))) {
+                        hops.add(neighbor.Id);
+                    }
+                }
+                newRoutingTable.SetPaths(toId, hops);
             }
         }
 
+        // see if there are any differences between our new and old routing table
+        boolean updated = !newRoutingTable.SameAs(routingTable);
+
         routingTable = newRoutingTable;
         return updated;
     }
 
+    // with keepalives, a node that goes down is cut off, and the routes to it everyone else still has go round in
+    // circles, counting up to infinity one slow SR round at a time
+    // so once a route gets worse or goes away, for the hold time only neighbors closer than we were count,
+    // any other route may be one that still goes through us, after that the rest are trusted again
+    private void StartHoldDown(int toId, long distance) {
+        // the first one is the closest, and it's the one that counts
+        if (holdDowns.containsKey(toId)) {
+            return;
+        }
+        holdDowns.put(toId, new HoldDown(distance, Calendar.getInstance().getTimeInMillis() + options.HoldMs));
+
+        flusher.schedule(new Runnable() {
+            @Override
+            public void run() {
+                deliveries.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (udpLock) {
+                            routing.LinksChanged();
+                        }
+                    }
+                });
+            }
+        }, options.HoldMs, TimeUnit.MILLISECONDS);
+    }
+
+    // with ECMP, a route through a neighbor is as good as the best one if it's at most the tolerance longer, and the
+    // neighbor is closer to the destination than we are, so it never sends the packets back to us
+    private boolean IsEqualCost(long linkWeight, long neighborDistance, long distance) {
+        long weight = linkWeight + neighborDistance;
+        return neighborDistance < distance && weight < options.Infinity && weight <= distance + Math.round(distance * options.EcmpTolerance);
+    }
+
+    // a neighbor this far from a destination can be used, see StartHoldDown
+    private boolean IsFeasible(int toId, long neighborDistance) {
+        HoldDown holdDown = holdDowns.get(toId);
+        return holdDown == null || neighborDistance < holdDown.Distance;
+    }
+
+    // the backup next hop for a destination: the cheapest other neighbor that is closer to it than we are,
+    // so its route can't come back through us, or NONE
+    private int LoopFreeAlternate(int toId, int nextHop, long distance) {
+        int alternate = RouteTable.NONE;
+        long alternateWeight = 0;
+
+        for (Neighbor neighbor : neighbors.values()) {
+            if (neighbor.Id == nextHop || !neighbor.Up || (neighbor.Id != toId && !neighbor.Routes.Has(toId))) {
+                continue;
+            }
+
+            long neighborDistance = neighbor.Id == toId ? 0 : neighbor.Routes.Weight(toId);
+            long weight = neighbor.Weight + neighborDistance;
+            if (neighborDistance < distance && weight < options.Infinity && (alternate == RouteTable.NONE || weight < alternateWeight)) {
+                alternate = neighbor.Id;
+                alternateWeight = weight;
+            }
+        }
+        return alternate;
+    }
+
     // Distance Vector broadcast of our routing table to all neighbors
     private void Broadcast() {
-        for (int neighborPort : neighbors.keySet()) {
-
-            String message = MessageCreator.Broadcast(neighborPort, routingTable);
+        for (Neighbor neighbor : neighbors.values()) {
+            // a neighbor that's down gets our table when it comes back
+            if (!neighbor.Up) {
+                continue;
+            }
 
             // if we haven't broadcast at least once,
             // AND we have nothing to send this neighbor, send a blank message just to
             // trigger the initial DV flood
-            if (message == null && !sentBroadcast) {
-                message = MessageCreator.BROADCAST_PREFIX + MessageCreator.PREFIX_DELIM + " _";
+            SendTable(neighbor, !sentBroadcast);
+        }
+
+        // mark that we have sent at least 1 broadcast
+        sentBroadcast = true;
+    }
+
+    // send our routing table to one neighbor, if there's anything in it for them or evenIfEmpty
+    private void SendTable(Neighbor neighbor, boolean evenIfEmpty) {
+        String message = MessageCreator.Broadcast(neighbor.Id, routingTable, ids);
+
+        // the neighbor replaces its whole copy of our table, so once a neighbor goes down and our table
+        // can shrink, an empty one has to go out too when the last one we sent wasn't
+        if (message == null && (evenIfEmpty || neighbor.SentRoutes)) {
+            message = MessageCreator.BROADCAST_PREFIX + MessageCreator.PREFIX_DELIM + " _";
+            neighbor.SentRoutes = false;
+        }
+        else if (message != null) {
+            neighbor.SentRoutes = true;
+        }
+
+        // if we have nothing to send, skip this neighbor
+        if (message == null) {
+            return;
+        }
+
+        // send it with selective repeat
+        neighbor.SrNode.SendMessage(message, false);
+
+        // print that we sent it
+        DvPrinting.PrintSendMessage(sourcePort, neighbor.Port);
+    }
+
+    // *********************************************
+    // ************** HELPER CLASSES ***************
+    // *********************************************
+
+    // how the routing table gets computed and kept up to date, picked with "routing dv|ls"
+    private interface RoutingEngine {
+
+        // the prefix of the messages this engine sends to its neighbors
+        String Prefix();
+
+        // build the first routing table, from the direct links only
+        void Start();
+
+        // tell the neighbors what they need to know, we're last or someone told us first
+        void Announce();
+
+        // the loss rate of one of our links changed
+        void LinksChanged();
+
+        // a message with our prefix from a neighbor, prefix already removed
+        void HandleMessage(int fromPort, String message);
+
+        // with keepalives, a neighbor stopped saying hello (already marked down), or started again
+        void NeighborDown(Neighbor neighbor);
+        void NeighborUp(Neighbor neighbor);
+    }
+
+    // the original distance vector routing, see EnsureRoutingTableIsUpdated and Broadcast
+    private class DistanceVector implements RoutingEngine {
+
+        public String Prefix() {
+            return MessageCreator.BROADCAST_PREFIX;
+        }
+
+        public void Start() {
+            EnsureRoutingTableIsUpdated();
+        }
+
+        public void Announce() {
+            Broadcast();
+        }
+
+        public void LinksChanged() {
+            if (EnsureRoutingTableIsUpdated()) {
+                DvPrinting.PrintRoutingTable(sourcePort, routingTable, ids);
+                Broadcast();
+            }
+        }
+
+        public void HandleMessage(int fromPort, String message) {
+            HandleDvFromNeighbor(fromPort, message);
+        }
+
+        // everything it told us is gone, the routes through it switch to their backup right away,
+        // and the ones without a backup are withdrawn until a neighbor tells us another way, both are held down
+        public void NeighborDown(Neighbor neighbor) {
+            neighbor.Routes = new RouteTable();
+
+            boolean updated = false;
+            for (int toId = 0; toId < routingTable.Length(); toId++) {
+                if (routingTable.NextHop(toId) != neighbor.Id) {
+                    // with ECMP, it can't take a share of the packets any more either
+                    int[] paths = routingTable.Paths(toId);
+                    if (paths != null) {
+                        List<Integer> hops = new ArrayList<Integer>();
+                        for (int hop : paths) {
+                            if (hop != neighbor.Id) {
+                                hops.add(hop);
+                            }
+                        }
+                        updated |= routingTable.SetPaths(toId, hops);
+                    }
+                    continue;
+                }
+
+                StartHoldDown(toId, routingTable.Weight(toId));
+
+                int backupId = routingTable.Backup(toId);
+                Neighbor backup = backupId == RouteTable.NONE ? null : neighbors.get(ids.Port(backupId));
+                if (backup != null && backup.Up && (backup.Id == toId || backup.Routes.Has(toId))) {
+                    // a new next hop drops the other ECMP ones too, they were only as good as the old one
+                    routingTable.Put(toId, backup.Id, backup.Weight + (backup.Id == toId ? 0 : backup.Routes.Weight(toId)));
+                    routingTable.SetBackup(toId, RouteTable.NONE);
+                }
+                else {
+                    routingTable.Remove(toId);
+                }
+                updated = true;
+            }
+
+            if (updated) {
+                DvPrinting.PrintRoutingTable(sourcePort, routingTable, ids);
+                Broadcast();
             }
+        }
+
+        // it may have started over, so it gets our table even if nothing changed, and even if there's nothing in it for it
+        public void NeighborUp(Neighbor neighbor) {
+            if (EnsureRoutingTableIsUpdated()) {
+                DvPrinting.PrintRoutingTable(sourcePort, routingTable, ids);
+                Broadcast();
+            }
+            SendTable(neighbor, true);
+        }
+    }
+
+    // link state routing: every node floods an LSA with the weights of its own links, numbered so
+    // the newest one wins, and runs Dijkstra over all of them
+    // only the part of the shortest path tree an LSA can change is recomputed, the rest stays as it is
+    private class LinkState implements RoutingEngine {
+
+        // the newest LSA from every node we've heard of, ours included
+        private HashMap<Integer, Lsa> lsas = new HashMap<Integer, Lsa>();
+
+        // the nodes whose LSA has a link to each node, to find another way in when a link goes bad
+        private HashMap<Integer, HashSet<Integer>> linksTo = new HashMap<Integer, HashSet<Integer>>();
+
+        // the shortest path tree from us
+        private ShortestPathTree tree;
+
+        // with ECMP, one from every neighbor that's up too, to see how far it is from each destination
+        private HashMap<Integer, ShortestPathTree> neighborTrees = new HashMap<Integer, ShortestPathTree>();
+
+        // marker for if we flooded our own LSA at least once, like sentBroadcast for DV
+        private boolean announced;
+
+        public String Prefix() {
+            return MessageCreator.LSA_PREFIX;
+        }
+
+        public void Start() {
+            tree = new ShortestPathTree(sourcePort);
+            Install(OwnLsa(1));
+        }
+
+        public void Announce() {
+            announced = true;
+            Flood(lsas.get(sourcePort), sourcePort);
+        }
+
+        public void LinksChanged() {
+            if (Install(OwnLsa(lsas.get(sourcePort).Sequence + 1))) {
+                DvPrinting.PrintRoutingTable(sourcePort, routingTable, ids);
+            }
+            Announce();
+        }
+
+        public void HandleMessage(int fromPort, String message) {
+
+            // print that we received an update
+            DvPrinting.PrintRcvMessage(sourcePort, fromPort);
+
+            Lsa lsa;
+            try {
+                lsa = Lsa.Parse(message);
+            }
+            catch (Exception e) {
+                // received an improperly formatted message, which should never happen - just ignore it
+                return;
+            }
+
+            // anything we have already came past here before and has been flooded on
+            Lsa existing = lsas.get(lsa.Origin);
+            if (existing == null || lsa.Sequence > existing.Sequence) {
+                if (lsa.Origin == sourcePort) {
+                    // an LSA of ours from before a restart, number ours past it so everyone takes ours instead
+                    Install(OwnLsa(lsa.Sequence + 1));
+                    Announce();
+                    return;
+                }
+
+                if (Install(lsa)) {
+                    DvPrinting.PrintRoutingTable(sourcePort, routingTable, ids);
+                }
+                Flood(lsa, fromPort);
+            }
+
+            // we need to flood our own LSA at least once or nobody else learns our links
+            if (!announced) {
+                Announce();
+            }
+        }
+
+        // our LSA loses the link and SPF takes the routes around it, exact, so no backups are needed
+        public void NeighborDown(Neighbor neighbor) {
+            LinksChanged();
+        }
+
+        // our LSA gets the link back, and since it may have started over, it gets every other LSA we have too
+        // (its own old one included, so it numbers its new one past that)
+        public void NeighborUp(Neighbor neighbor) {
+            LinksChanged();
+            for (Lsa lsa : lsas.values()) {
+                if (lsa.Origin == sourcePort) {
+                    continue;
+                }
+                neighbor.SrNode.SendMessage(MessageCreator.Lsa(lsa), false);
+                DvPrinting.PrintSendMessage(sourcePort, neighbor.Port);
+            }
+        }
+
+        // send an LSA on to every neighbor except the one it came from
+        private void Flood(Lsa lsa, int fromPort) {
+            String message = MessageCreator.Lsa(lsa);
+            for (Neighbor neighbor : neighbors.values()) {
+                if (neighbor.Port == fromPort || !neighbor.Up) {
+                    continue;
+                }
+
+                // send it with selective repeat
+                neighbor.SrNode.SendMessage(message, false);
+
+                // print that we sent it
+                DvPrinting.PrintSendMessage(sourcePort, neighbor.Port);
+            }
+        }
+
+        // our own links as they are now
+        private Lsa OwnLsa(int sequence) {
+            HashMap<Integer, Long> links = new HashMap<Integer, Long>();
+            for (Neighbor neighbor : neighbors.values()) {
+                if (neighbor.Up) {
+                    links.put(neighbor.Port, neighbor.Weight);
+                }
+            }
+            return new Lsa(sourcePort, sequence, links);
+        }
+
+        // replace the LSA from its origin and update the tree, returns true if the routing table changed
+        private boolean Install(Lsa lsa) {
+            Lsa old = lsas.put(lsa.Origin, lsa);
+            HashMap<Integer, Long> oldLinks = old == null ? new HashMap<Integer, Long>() : old.Links;
+
+            for (int toPort : oldLinks.keySet()) {
+                if (!lsa.Links.containsKey(toPort)) {
+                    linksTo.get(toPort).remove(lsa.Origin);
+                }
+            }
+            for (int toPort : lsa.Links.keySet()) {
+                if (!linksTo.containsKey(toPort)) {
+                    linksTo.put(toPort, new HashSet<Integer>());
+                }
+                linksTo.get(toPort).add(lsa.Origin);
+            }
+
+            // the next hop comes from the top of the path, so every entry below a touched node may have changed
+            HashSet<Integer> affected = new HashSet<Integer>();
+            for (int node : tree.Update(lsa.Origin, oldLinks, lsa.Links)) {
+                tree.Subtree(node, affected);
+            }
+            boolean updated = UpdateRoutingTable(affected);
+
+            if (options.Ecmp) {
+                updated |= UpdatePaths(lsa, oldLinks, affected);
+            }
+            return updated;
+        }
+
+        // with ECMP, the other neighbors whose route to a destination is (about) as good as the best one
+        // every neighbor tree is kept up to date like ours, and only the destinations whose distance from us or from
+        // a neighbor may have changed are looked at again, returns true if any of them changed
+        private boolean UpdatePaths(Lsa lsa, HashMap<Integer, Long> oldLinks, HashSet<Integer> affected) {
+            // our own links changed, so the neighbors that are up and the weights to them may have too
+            boolean all = lsa.Origin == sourcePort;
+
+            for (Iterator<Integer> it = neighborTrees.keySet().iterator(); it.hasNext(); ) {
+                if (!neighbors.get(it.next()).Up) {
+                    it.remove();
+                    all = true;
+                }
+            }
+
+            for (Map.Entry<Integer, ShortestPathTree> entry : neighborTrees.entrySet()) {
+                affected.addAll(entry.getValue().Update(lsa.Origin, oldLinks, lsa.Links));
+            }
+
+            for (Neighbor neighbor : neighbors.values()) {
+                if (neighbor.Up && !neighborTrees.containsKey(neighbor.Port)) {
+                    // a tree of its own from scratch, Dijkstra from its links out
+                    ShortestPathTree neighborTree = new ShortestPathTree(neighbor.Port);
+                    Lsa neighborLsa = lsas.get(neighbor.Port);
+                    if (neighborLsa != null) {
+                        neighborTree.Update(neighbor.Port, new HashMap<Integer, Long>(), neighborLsa.Links);
+                    }
+                    neighborTrees.put(neighbor.Port, neighborTree);
+                    all = true;
+                }
+            }
+
+            boolean updated = false;
+            for (int toId = 0; toId < routingTable.Length(); toId++) {
+                if (routingTable.Has(toId) && (all || affected.contains(ids.Port(toId)))) {
+                    updated |= UpdatePaths(toId);
+                }
+            }
+            return updated;
+        }
+
+        private boolean UpdatePaths(int toId) {
+            List<Integer> hops = new ArrayList<Integer>();
+            hops.add(routingTable.NextHop(toId));
+            for (Map.Entry<Integer, ShortestPathTree> entry : neighborTrees.entrySet()) {
+                Neighbor neighbor = neighbors.get(entry.getKey());
+                Long neighborDistance = entry.getValue().distances.get(ids.Port(toId));
+                if (neighbor.Id != routingTable.NextHop(toId) && neighborDistance != null && IsEqualCost(neighbor.Weight, neighborDistance, routingTable.Weight(toId))) {
+                    hops.add(neighbor.Id);
+                }
+            }
+            return routingTable.SetPaths(toId, hops);
+        }
+
+        // a shortest path tree over the LSAs we have: distance from the root, the node just before on the path,
+        // the nodes just after, distances in thousandths, like link weights
+        private class ShortestPathTree {
+            private final int root;
+            private HashMap<Integer, Long> distances = new HashMap<Integer, Long>();
+            private HashMap<Integer, Integer> parents = new HashMap<Integer, Integer>();
+            private HashMap<Integer, HashSet<Integer>> children = new HashMap<Integer, HashSet<Integer>>();
+
+            public ShortestPathTree(int root) {
+                this.root = root;
+                distances.put(root, 0L);
+            }
+
+            // incremental SPF after the links of one node changed
+            // a link that got better can only shorten paths, so Dijkstra just carries on from the far end of it
+            // a link in the tree that got worse cuts off everything below it, and only those nodes look for a new way in
+            // returns the nodes whose distance or parent may have changed
+            public HashSet<Integer> Update(int origin, HashMap<Integer, Long> oldLinks, HashMap<Integer, Long> newLinks) {
+                PriorityQueue<HeapEntry> heap = new PriorityQueue<HeapEntry>();
+
+                // nodes whose distance or parent may have changed
+                HashSet<Integer> touched = new HashSet<Integer>();
+
+                // cut off the subtrees below links that got worse or went away
+                HashSet<Integer> cutOff = new HashSet<Integer>();
+                for (Map.Entry<Integer, Long> link : oldLinks.entrySet()) {
+                    Long newWeight = newLinks.get(link.getKey());
+                    if ((newWeight == null || newWeight > link.getValue()) && parents.containsKey(link.getKey()) && parents.get(link.getKey()) == origin) {
+                        Subtree(link.getKey(), cutOff);
+                    }
+                }
+                for (int node : cutOff) {
+                    distances.remove(node);
+                    SetParent(node, null);
+                }
+                touched.addAll(cutOff);
+
+                // every cut off node starts from its best link in from a node that still has a distance
+                for (int node : cutOff) {
+                    if (!linksTo.containsKey(node)) {
+                        continue;
+                    }
+                    for (int from : linksTo.get(node)) {
+                        Long distance = distances.get(from);
+                        if (distance != null) {
+                            Relax(from, node, distance + lsas.get(from).Links.get(node), heap);
+                        }
+                    }
+                }
+
+                // the links of the origin that got better or are new
+                Long originDistance = distances.get(origin);
+                if (originDistance != null) {
+                    for (Map.Entry<Integer, Long> link : newLinks.entrySet()) {
+                        Relax(origin, link.getKey(), originDistance + link.getValue(), heap);
+                    }
+                }
+
+                // Dijkstra from there, PriorityQueue is a binary heap
+                // a node can be in it more than once, only its latest (smallest) distance counts
+                while (!heap.isEmpty()) {
+                    HeapEntry entry = heap.poll();
+                    if (entry.Distance > distances.get(entry.Node)) {
+                        continue;
+                    }
+                    touched.add(entry.Node);
+
+                    Lsa lsa = lsas.get(entry.Node);
+                    if (lsa == null) {
+                        continue; // we know someone has a link to it, but not its own links yet
+                    }
+                    for (Map.Entry<Integer, Long> link : lsa.Links.entrySet()) {
+                        Relax(entry.Node, link.getKey(), entry.Distance + link.getValue(), heap);
+                    }
+                }
+
+                return touched;
+            }
+
+            // use the path through from if it's shorter than what to has now
+            private void Relax(int from, int to, long distance, PriorityQueue<HeapEntry> heap) {
+                Long existing = distances.get(to);
+                if (to == root || (existing != null && existing <= distance)) {
+                    return;
+                }
+                distances.put(to, distance);
+                SetParent(to, from);
+                heap.add(new HeapEntry(to, distance));
+            }
+
+            private void SetParent(int node, Integer parent) {
+                Integer oldParent = parent == null ? parents.remove(node) : parents.put(node, parent);
+                if (oldParent != null) {
+                    children.get(oldParent).remove(node);
+                }
+                if (parent != null) {
+                    if (!children.containsKey(parent)) {
+                        children.put(parent, new HashSet<Integer>());
+                    }
+                    children.get(parent).add(node);
+                }
+            }
+
+            // adds node and everything below it in the tree
+            public void Subtree(int node, HashSet<Integer> subtree) {
+                Deque<Integer> toVisit = new ArrayDeque<Integer>();
+                toVisit.push(node);
+                while (!toVisit.isEmpty()) {
+                    int next = toVisit.pop();
+                    if (subtree.add(next) && children.containsKey(next)) {
+                        for (int child : children.get(next)) {
+                            toVisit.push(child);
+                        }
+                    }
+                }
+            }
+        }
+
+        // redo the entries of the affected nodes, returns true if any of them changed
+        private boolean UpdateRoutingTable(HashSet<Integer> affected) {
+            boolean updated = false;
+            for (int node : affected) {
+                if (node == sourcePort) {
+                    continue;
+                }
+
+                int id = ids.Id(node);
+                if (!tree.distances.containsKey(node)) {
+                    if (routingTable.Has(id)) {
+                        routingTable.Remove(id);
+                        updated = true;
+                    }
+                    continue;
+                }
+
+                // walk up the tree to the neighbor the path starts with
+                int neighborPort = node;
+                while (tree.parents.get(neighborPort) != sourcePort) {
+                    neighborPort = tree.parents.get(neighborPort);
+                }
+
+                int nextHop = ids.Id(neighborPort);
+                long distance = tree.distances.get(node);
+                if (routingTable.NextHop(id) != nextHop || routingTable.Weight(id) != distance) {
+                    routingTable.Put(id, nextHop, distance);
+                    updated = true;
+                }
+            }
+            return updated;
+        }
+    }
+
+    // one node's links and their weights in thousandths, a higher sequence number replaces a lower one
+    private static class Lsa {
+        public final int Origin;
+        public final int Sequence;
+        public final HashMap<Integer, Long> Links;
+
+        public Lsa(int origin, int sequence, HashMap<Integer, Long> links) {
+            Origin = origin;
+            Sequence = sequence;
+            Links = links;
+        }
+
+        // the reverse of MessageCreator.Lsa, without the prefix
+        public static Lsa Parse(String message) {
+            String[] parts = message.trim().split(" ");
+            String[] header = parts[0].split(",");
+
+            HashMap<Integer, Long> links = new HashMap<Integer, Long>();
+            for (int i = 1; i < parts.length; i++) {
+                String[] linkParts = parts[i].split(",");
+                links.put(Integer.parseInt(linkParts[0]), RouteTable.Milli(Double.parseDouble(linkParts[1])));
+            }
+
+            return new Lsa(Integer.parseInt(header[0]), Integer.parseInt(header[1]), links);
+        }
+    }
+
+    // a node waiting in the Dijkstra heap, closest first
+    private static class HeapEntry implements Comparable<HeapEntry> {
+        public final int Node;
+        public final long Distance;
+
+        public HeapEntry(int node, long distance) {
+            Node = node;
+            Distance = distance;
+        }
+
+        public int compareTo(HeapEntry other) {
+            return Long.compare(Distance, other.Distance);
+        }
+    }
+
+    // a distance vector destination that is held down, see StartHoldDown
+    private static class HoldDown {
+        public final long Distance; // ours before it got worse, in thousandths
+        public final long Until;
+
+        public HoldDown(long distance, long until) {
+            Distance = distance;
+            Until = until;
+        }
+    }
+
+    // info we need to store about each neighbor to compute routing table
+    // also note that each neighbor has an SRNode, because we keep track
+    // of selective repeat on a per neighbor basis
+    private class Neighbor {
+        public final int Port;
+        public final int Id;
+        public long Weight; // in thousandths
+        public double LossRate;
+        public RouteTable Routes = new RouteTable();
+        public volatile SRNode SrNode;
+        public LossModel Loss;
+
+        // with keepalives: when we last heard anything from it, and if we ever have, so neighbors that
+        // haven't started yet aren't down
+        // Alive is what the keepalives say, Up is what the routing has been told (see UpdateNeighborState)
+        public volatile long LastHeardTime;
+        public volatile boolean HeardFrom;
+        public volatile boolean Alive = true;
+        public boolean Up = true;
+
+        // if the last routing table we sent it had anything in it, see SendTable
+        public boolean SentRoutes;
+
+        public Neighbor(int port, double lossRate) {
+            Port = port;
+            Id = ids.Id(port);
+
+            // defaults from assignment description: windowSize = 10, timeout = 300ms
+            SrNode = new SRNode(socket, port, 10, 300);
+
+            // each link gets its own generator, mixed from the one seed so runs repeat exactly
+            Loss = new LossModel(0, options.MeanBurstLength, options.Seed ^ ((long)port * 0x9E3779B97F4A7C15L));
+
+            UpdateLossRate(lossRate);
+        }
+
+        public void UpdateLossRate(double lossRate) {
+            LossRate = (double)Math.round(lossRate * 1000)/1000; // round to 3 decimal places
+            Loss.SetLossRate(LossRate);
+            Weight = RouteTable.Milli(1 / (1 - LossRate));
+        }
+
+        // on the udp thread, for every datagram from it
+        public synchronized void Heard() {
+            LastHeardTime = Calendar.getInstance().getTimeInMillis();
+            HeardFrom = true;
+            if (!Alive) {
+                Alive = true;
+                DvPrinting.PrintNeighborUp(sourcePort, Port);
+                QueueStateUpdate();
+            }
+        }
+
+        // on the keepalive thread, once it has been quiet for the detection time
+        // a send waiting on its ACKs gives up (see SRNode.Close), and it gets a fresh SRNode for
+        // when it comes back, since it will most likely have started over
+        public synchronized void Down() {
+            Alive = false;
+            SRNode old = SrNode;
+            SrNode = new SRNode(socket, Port, 10, 300);
+            old.Close();
+            DvPrinting.PrintNeighborDown(sourcePort, Port);
+            QueueStateUpdate();
+        }
+
+        // the routing hears about it on the delivery thread, in order with the messages around it,
+        // which can be a while if a send holds udpLock
+        private void QueueStateUpdate() {
+            deliveries.add(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (udpLock) {
+                        UpdateNeighborState(Neighbor.this);
+                    }
+                }
+            });
+        }
+
+    }
+
+    // a dense id for every port we hear of, in the order we hear of them, ports only matter on the wire
+    private static class NodeIds {
+        private HashMap<Integer, Integer> ids = new HashMap<Integer, Integer>();
+        private int[] ports = new int[16];
+
+        // the id of a port, a new one the first time
+        public int Id(int port) {
+            Integer id = ids.get(port);
+            if (id == null) {
+                id = ids.size();
+                if (id == ports.length) {
+                    ports = Arrays.copyOf(ports, id * 2);
+                }
+                ports[id] = port;
+                ids.put(port, id);
+            }
+            return id;
+        }
+
+        // the id of a port, or RouteTable.NONE if we never heard of it
+        public int Find(int port) {
+            Integer id = ids.get(port);
+            return id == null ? RouteTable.NONE : id;
+        }
+
+        public int Port(int id) {
+            return ports[id];
+        }
+    }
+
+    // routes by destination id, as parallel arrays of the next hop's id and the weight in thousandths,
+    // so weights compare exactly and an entry is two array slots instead of an object
+    private static class RouteTable {
+        public static final int NONE = -1;
 
-            // if we have nothing to send, skip this neighbor
-            if (message == null) {
-                continue;
-            }
+        private int[] nextHops = new int[0];
+        private long[] weights = new long[0];
+        private int length; // one past the highest id ever put in
+        private int size;
 
-            // send it with selective repeat
-            neighbors.get(neighborPort).SrNode.SendMessage(message, false);
+        // with keepalives, only our own routing table has backup next hops, see EnsureRoutingTableIsUpdated
+        private int[] backups;
 
-            // print that we sent it
-            DvPrinting.PrintSendMessage(sourcePort, neighborPort);
+        // with ECMP, every next hop (the best one first) of the destinations that have more than one
+        private int[][] paths;
+
+        public static long Milli(double weight) {
+            return Math.round(weight * 1000);
         }
 
-        // mark that we have sent at least 1 broadcast
-        sentBroadcast = true;
-    }
+        public static double FromMilli(long weight) {
+            return weight / 1000.0;
+        }
 
-    // *********************************************
-    // ************** HELPER CLASSES ***************
-    // *********************************************
+        // ids below this may be in the table, none from here on
+        public int Length() {
+            return length;
+        }
 
-    // info we need to store about each neighbor to compute routing table
-    // also note that each neighbor has an SRNode, because we keep track
-    // of selective repeat on a per neighbor basis
-    private class Neighbor {
-        public final int Port;
-        public double Weight;
-        public double LossRate;
-        public HashMap<Integer, RoutingTableEntry> Routes = new HashMap<Integer, RoutingTableEntry>();
-        public SRNode SrNode;
+        public boolean Has(int id) {
+            return NextHop(id) != NONE;
+        }
 
-        public Neighbor(int port, double lossRate) {
-            Port = port;
+        // the next hop's id, or NONE
+        public int NextHop(int id) {
+            return id >= 0 && id < length ? nextHops[id] : NONE;
+        }
 
-            // defaults from assignment description: windowSize = 10, timeout = 300ms
-            SrNode = new SRNode(socket, port, 10, 300);
+        public long Weight(int id) {
+            return id >= 0 && id < length ? weights[id] : 0;
+        }
 
-            UpdateLossRate(lossRate);
+        public int Backup(int id) {
+            return backups != null && id >= 0 && id < backups.length ? backups[id] : NONE;
         }
 
-        public void UpdateLossRate(double lossRate) {
-            LossRate = (double)Math.round(lossRate * 1000)/1000; // round to 3 decimal places
-            double weight = 1 / (1 - LossRate);
-            Weight = (double)Math.round(weight * 1000)/1000; // round to 3 decimal places
+        public void SetBackup(int id, int nextHop) {
+            if (backups == null || backups.length < nextHops.length) {
+                int[] old = backups;
+                backups = new int[nextHops.length];
+                Arrays.fill(backups, NONE);
+                if (old != null) {
+                    System.arraycopy(old, 0, backups, 0, old.length);
+                }
+            }
+            backups[id] = nextHop;
         }
 
-    }
+        // the next hops of a destination, if there's more than one, or null
+        public int[] Paths(int id) {
+            return paths != null && id >= 0 && id < paths.length ? paths[id] : null;
+        }
 
-    // routing used by this node
-    private class RoutingTableEntry {
-        public final int ToPort;
-        public int NeighborPort;
-        public final double Weight;
+        // returns true if they changed
+        public boolean SetPaths(int id, List<Integer> hops) {
+            int[] newPaths = null;
+            if (hops.size() > 1) {
+                newPaths = new int[hops.size()];
+                for (int i = 0; i < newPaths.length; i++) {
+                    newPaths[i] = hops.get(i);
+                }
+            }
+            if (Arrays.equals(Paths(id), newPaths)) {
+                return false;
+            }
+
+            if (paths == null || paths.length < nextHops.length) {
+                paths = paths == null ? new int[nextHops.length][] : Arrays.copyOf(paths, nextHops.length);
+            }
+            paths[id] = newPaths;
+            return true;
+        }
+
+        public void Put(int id, int nextHop, long weight) {
+            if (id >= nextHops.length) {
+                int capacity = Math.max(16, Math.max(id + 1, nextHops.length * 2));
+                nextHops = Arrays.copyOf(nextHops, capacity);
+                weights = Arrays.copyOf(weights, capacity);
+                Arrays.fill(nextHops, length, capacity, NONE);
+            }
+            if (id >= length) {
+                length = id + 1;
+            }
+            if (nextHops[id] == NONE) {
+                size++;
+            }
+            // the other next hops were only as good as the old one
+            if (paths != null && id < paths.length && nextHops[id] != nextHop) {
+                paths[id] = null;
+            }
+            nextHops[id] = nextHop;
+            weights[id] = weight;
+        }
+
+        public void Remove(int id) {
+            if (Has(id)) {
+                nextHops[id] = NONE;
+                weights[id] = 0;
+                size--;
+            }
+            if (backups != null && id < backups.length) {
+                backups[id] = NONE;
+            }
+            if (paths != null && id < paths.length) {
+                paths[id] = null;
+            }
+        }
 
-        public RoutingTableEntry(int toPort, int neighborPort, double weight) {
-            ToPort = toPort;
-            NeighborPort = neighborPort;
-            Weight = (double)Math.round(weight * 1000)/1000; // round to 3 decimal places
+        // true if both have the same routes for the same costs
+        public boolean SameAs(RouteTable other) {
+            if (size != other.size) {
+                return false;
+            }
+            for (int id = 0; id < length; id++) {
+                if (NextHop(id) != other.NextHop(id) || Weight(id) != other.Weight(id) || !Arrays.equals(Paths(id), other.Paths(id))) {
+                    return false;
+                }
+            }
+            return true;
         }
     }
 
     // statistics to keep track of "send"
     private class SendStat {
 
-        public SendStat(String message, int numValidReceived, int totalNumReceived) {
+        public SendStat(String message, int numValidReceived, int totalNumReceived, int totalNumDropped) {
             Message = message;
             NumValidReceived = numValidReceived;
             TotalNumReceived = totalNumReceived;
+            TotalNumDropped = totalNumDropped;
         }
 
         public String Message;
         public int NumValidReceived;
         public int TotalNumReceived;
+        public int TotalNumDropped;
 
         public double GetLossRate() {
             int numDropped = TotalNumReceived - NumValidReceived;
@@ -652,13 +1672,27 @@ public class SDNode {
 
                 Neighbor n = neighbors.get(fromPort);
 
+                // with keepalives, anything at all from a neighbor shows it's there, even what the loss model
+                // drops next, that loss is what the link weight stands for, not the neighbor going away
+                if (options.KeepaliveMs > 0) {
+                    n.Heard();
+                }
+
+                // hellos are only for that, SR never sees them
+                if (msg.equals(MessageCreator.HELLO)) {
+                    continue;
+                }
+
                 // if it's not an ACK, mark that we received from neighbor
                 if (!msg.startsWith("ACK")) {
                     n.SrNode.numReceivedSinceLastDeliver++;
                 }
 
                 // simulates "dropped" packets based on neighbor loss rate
-                if (new Random().nextDouble() < n.LossRate) {
+                if (n.Loss.ShouldDrop()) {
+                    if (!msg.startsWith("ACK")) {
+                        n.SrNode.numDroppedSinceLastDeliver++;
+                    }
                     continue;
                 }
 
@@ -681,6 +1715,215 @@ public class SDNode {
         }
     }
 
+    // thread that says hello to every neighbor each keepalive interval, down ones too so they know we're back,
+    // and marks the ones we have heard from, but not for the detection time, as down
+    // it never takes udpLock, so a send stuck waiting on a neighbor that went away can't hold it up
+    private class KeepaliveSender implements Runnable {
+
+        @Override
+        public void run() {
+            long nextHelloTime = 0;
+
+            while (true) {
+                long now = Calendar.getInstance().getTimeInMillis();
+
+                for (Neighbor neighbor : neighbors.values()) {
+                    if (neighbor.Alive && neighbor.HeardFrom && now >= neighbor.LastHeardTime + options.DetectMs) {
+                        neighbor.Down();
+                    }
+                }
+
+                if (now >= nextHelloTime) {
+                    for (Neighbor neighbor : neighbors.values()) {
+                        neighbor.SrNode.UnreliableSend(neighbor.Port, MessageCreator.HELLO);
+                    }
+                    nextHelloTime = now + options.KeepaliveMs;
+                }
+
+                // sleep until the next hello or the first neighbor that could go quiet, it can only be heard from later
+                long wakeTime = nextHelloTime;
+                for (Neighbor neighbor : neighbors.values()) {
+                    if (neighbor.Alive && neighbor.HeardFrom) {
+                        wakeTime = Math.min(wakeTime, neighbor.LastHeardTime + options.DetectMs);
+                    }
+                }
+                try {
+                    Thread.sleep(Math.max(1, wakeTime - now));
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // optional flags, these can go anywhere after the port number
+    private static class Options {
+
+        // the infinity with keepalives if none is given, 100 links with no loss, or 10 with 90%
+        public static final long DEFAULT_INFINITY = RouteTable.Milli(100);
+
+        // long enough for a withdrawal to cross a few links, even with SR timeouts on the way
+        public static final int DEFAULT_HOLD_MS = 3000;
+
+        // the simulated loss, see LossModel
+        public long Seed = System.nanoTime();
+        public double MeanBurstLength;
+
+        // how long control messages wait to be packed together, 0 sends each one on its own
+        public int CoalesceMs;
+
+        // compute routes with link state instead of distance vector
+        public boolean LinkState;
+
+        // with keepalive, neighbors we stop hearing from for the detection time go down, 0 for none
+        public int KeepaliveMs;
+        public int DetectMs;
+
+        // distance vector routes this long or longer are dropped, in thousandths like weights
+        public long Infinity = Long.MAX_VALUE;
+
+        // with keepalives, how long a distance vector route that got worse only takes closer neighbors, see StartHoldDown
+        public int HoldMs = DEFAULT_HOLD_MS;
+
+        // spread "send" packets over every next hop at most this fraction longer than the best one, see SendSpread
+        public boolean Ecmp;
+        public double EcmpTolerance;
+
+        // removes the flags it knows from args and returns what's left
+        public static String[] Parse(String[] args, Options options) throws IllegalArgumentException {
+            List<String> rest = new ArrayList<String>();
+
+            for (int i = 0; i < args.length; i++) {
+                if ("seed".equals(args[i]) && i + 1 < args.length) {
+                    options.Seed = Long.parseLong(args[++i]);
+                }
+                else if ("burst".equals(args[i]) && i + 1 < args.length) {
+                    options.MeanBurstLength = Double.parseDouble(args[++i]);
+                    if (options.MeanBurstLength < 1) {
+                        throw new IllegalArgumentException("Arguments outside valid range.");
+                    }
+                }
+                else if ("coalesce".equals(args[i]) && i + 1 < args.length) {
+                    options.CoalesceMs = Integer.parseInt(args[++i]);
+                    if (options.CoalesceMs < 0) {
+                        throw new IllegalArgumentException("Arguments outside valid range.");
+                    }
+                }
+                else if ("routing".equals(args[i]) && i + 1 < args.length) {
+                    String engine = args[++i];
+                    if (!"dv".equals(engine) && !"ls".equals(engine)) {
+                        throw new IllegalArgumentException("Unknown routing " + engine);
+                    }
+                    options.LinkState = "ls".equals(engine);
+                }
+                else if ("keepalive".equals(args[i]) && i + 1 < args.length) {
+                    options.KeepaliveMs = Integer.parseInt(args[++i]);
+                    if (options.KeepaliveMs < 1) {
+                        throw new IllegalArgumentException("Arguments outside valid range.");
+                    }
+                }
+                else if ("detect".equals(args[i]) && i + 1 < args.length) {
+                    options.DetectMs = Integer.parseInt(args[++i]);
+                    if (options.DetectMs < 1) {
+                        throw new IllegalArgumentException("Arguments outside valid range.");
+                    }
+                }
+                else if ("hold".equals(args[i]) && i + 1 < args.length) {
+                    options.HoldMs = Integer.parseInt(args[++i]);
+                    if (options.HoldMs < 0) {
+                        throw new IllegalArgumentException("Arguments outside valid range.");
+                    }
+                }
+                else if ("ecmp".equals(args[i]) && i + 1 < args.length) {
+                    options.Ecmp = true;
+                    options.EcmpTolerance = Double.parseDouble(args[++i]);
+                    if (options.EcmpTolerance < 0) {
+                        throw new IllegalArgumentException("Arguments outside valid range.");
+                    }
+                }
+                else if ("infinity".equals(args[i]) && i + 1 < args.length) {
+                    options.Infinity = RouteTable.Milli(Double.parseDouble(args[++i]));
+                    if (options.Infinity <= 0) {
+                        throw new IllegalArgumentException("Arguments outside valid range.");
+                    }
+                }
+                else {
+                    rest.add(args[i]);
+                }
+            }
+
+            // three hellos in a row have to go missing by default, and at least one always has to
+            if (options.DetectMs > 0 && options.KeepaliveMs == 0) {
+                throw new IllegalArgumentException("detect needs keepalive");
+            }
+            if (options.DetectMs == 0) {
+                options.DetectMs = 3 * options.KeepaliveMs;
+            }
+            if (options.KeepaliveMs > 0 && options.DetectMs <= options.KeepaliveMs) {
+                throw new IllegalArgumentException("detect has to be longer than keepalive");
+            }
+
+            // a node that goes down is cut off from everyone, and distance vector would count up to it forever
+            if (options.KeepaliveMs > 0 && options.Infinity == Long.MAX_VALUE) {
+                options.Infinity = DEFAULT_INFINITY;
+            }
+
+            return rest.toArray(new String[rest.size()]);
+        }
+    }
+
+    // decides which received datagrams to "lose", one per link
+    // independent (Bernoulli) losses by default, or with a mean burst length, a
+    // two state Gilbert model: the link goes bad and drops everything until it goes
+    // good again, with the chance of going bad picked so the average loss rate is the same
+    // uses its own seedable SplitMix64 generator, so runs can be repeated exactly
+    private static class LossModel {
+
+        private volatile double lossRate;
+        private final double meanBurstLength;
+        private long state;
+        private boolean inBurst;
+
+        public LossModel(double lossRate, double meanBurstLength, long seed) {
+            this.lossRate = lossRate;
+            this.meanBurstLength = meanBurstLength;
+            this.state = seed;
+        }
+
+        public void SetLossRate(double lossRate) {
+            this.lossRate = lossRate;
+        }
+
+        public boolean ShouldDrop() {
+            boolean drop;
+
+            if (meanBurstLength < 1 || lossRate == 0) {
+                drop = NextDouble() < lossRate;
+            }
+            else {
+                // leave a burst with chance 1/length, so bursts are length long on average
+                double leaveBurst = 1 / meanBurstLength;
+                double enterBurst = lossRate * leaveBurst / (1 - lossRate);
+
+                inBurst = inBurst ? NextDouble() >= leaveBurst : NextDouble() < enterBurst;
+                drop = inBurst;
+            }
+
+            return drop;
+        }
+
+        // uniform in [0, 1)
+        private double NextDouble() {
+            state += 0x9E3779B97F4A7C15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            z = z ^ (z >>> 31);
+            return (z >>> 11) * 0x1.0p-53;
+        }
+    }
+
     // an individual packet to be sent with UDP
     private class Packet {
         public final int SourcePort;
@@ -728,6 +1971,7 @@ public class SDNode {
         private int timeoutMs;
 
         // private fields used by Selective Repeat SENDER
+        // the sending thread and the UdpListener (ACKs) both change these, so only with this SRNode locked
         private int sendNextSeqNum;
         private int sendWindowBase;
         private HashSet<Integer> ackedPackets = new HashSet<Integer>();
@@ -740,12 +1984,30 @@ public class SDNode {
         private HashMap<Integer, Packet> rcvdPackets = new HashMap<Integer, Packet>();
 
         // extra info for "send" command
-        // when we deliver messages, include the total number of packets received
+        // when we deliver messages, include the total number of packets received, and how many of those were dropped
         private int numReceivedSinceLastDeliver;
+        private int numDroppedSinceLastDeliver;
+
+        // the most data in one packet, the UdpListener reads at most 1024 bytes, which has to fit the packet number too
+        private static final int MAX_DATA_LENGTH = 1000;
+
+        // the pieces of a message too big for one packet that have been delivered so far, see PackMessages
+        private StringBuilder partialMessage = new StringBuilder();
+
+        // control messages waiting to be packed into one packet, see SendCoalesced
+        private List<String> pendingMessages = new ArrayList<String>();
+        private boolean flushScheduled;
+
+        // the neighbor went down and this SRNode was replaced, see Neighbor.Down
+        private volatile boolean closed;
+
+        public void Close() {
+            closed = true;
+        }
 
         // when we receive an ACK, possibly shift window and possibly send
         // more packets if any are waiting to be sent
-        public void HandleReceivedAck(int packetNum) {
+        public synchronized void HandleReceivedAck(int packetNum) {
 
             if (ackedPackets.contains(packetNum) || packetNum < sendWindowBase || packetNum >= sendWindowBase + windowSize) {
                 // note, we can assume sender/receiver windows are the same so that this will never happen
@@ -808,34 +2070,150 @@ public class SDNode {
                 }
 
                 // deliver data and keep processing
-                new Thread(new MessageDelivery(toDeliver)).start();
+                deliveries.add(new MessageDelivery(toDeliver));
             }
 
             // note that SDNode does not print any SR info (Discard, Receive1, Receive2)
         }
 
-        // send a bunch of random packets
-        public void SendRandomPackets(final int numPackets, String message) {
-            List<Packet> packets = new ArrayList<Packet>();
+        // send a bunch of random packets, returns false if the neighbor went down first
+        public boolean SendRandomPackets(final int numPackets, String message) {
+            return SendPacketsImpl(RandomPackets(numPackets, message), true);
+        }
+
+        private List<String> RandomPackets(int numPackets, String message) {
+            List<String> packets = new ArrayList<String>();
             for (int i = 0; i < numPackets; i++) {
-                Packet payload = new Packet(message, sendNextSeqNum++, sourcePort, destPort);
-                packets.add(payload);
+                packets.add(message);
+            }
+            return packets;
+        }
+
+        // send a "normal" message, returns false if the neighbor went down first
+        public boolean SendMessage(final String message, boolean shouldPrintStartFinish) {
+            if (options.CoalesceMs > 0) {
+                return SendCoalesced(message, shouldPrintStartFinish);
+            }
+
+            return SendPacketsImpl(PackMessages(Collections.singletonList(message)), shouldPrintStartFinish);
+        }
+
+        // Nagle-style: control messages (DV and CHANGE) wait up to CoalesceMs so that a burst of
+        // them goes out as one packet, and one round trip, instead of one each
+        // timed messages (END) go right away, taking anything that was waiting along with them
+        private boolean SendCoalesced(String message, boolean shouldPrintStartFinish) {
+            List<String> messages;
+
+            synchronized (this) {
+                // the neighbor replaces its whole copy of our table with each DV, so only the newest one matters
+                if (message.startsWith(MessageCreator.BROADCAST_PREFIX + MessageCreator.PREFIX_DELIM)) {
+                    Iterator<String> it = pendingMessages.iterator();
+                    while (it.hasNext()) {
+                        if (it.next().startsWith(MessageCreator.BROADCAST_PREFIX + MessageCreator.PREFIX_DELIM)) {
+                            it.remove();
+                        }
+                    }
+                }
+                // same for a newer LSA from the same origin
+                else if (message.startsWith(MessageCreator.LSA_PREFIX + MessageCreator.PREFIX_DELIM)) {
+                    String origin = message.substring(0, message.indexOf(',') + 1);
+                    Iterator<String> it = pendingMessages.iterator();
+                    while (it.hasNext()) {
+                        if (it.next().startsWith(origin)) {
+                            it.remove();
+                        }
+                    }
+                }
+                pendingMessages.add(message);
+
+                if (!shouldPrintStartFinish) {
+                    if (!flushScheduled) {
+                        flushScheduled = true;
+                        // the flush waits for ACKs, so it runs on the delivery thread, the flusher only keeps time
+                        flusher.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                deliveries.add(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        FlushCoalesced();
+                                    }
+                                });
+                            }
+                        }, options.CoalesceMs, TimeUnit.MILLISECONDS);
+                    }
+                    return true;
+                }
+
+                messages = pendingMessages;
+                pendingMessages = new ArrayList<String>();
+            }
+
+            return SendPacketsImpl(PackMessages(messages), shouldPrintStartFinish);
+        }
+
+        // send whatever control messages are waiting, on the delivery thread
+        private void FlushCoalesced() {
+            List<String> messages;
+            synchronized (this) {
+                flushScheduled = false;
+                messages = pendingMessages;
+                pendingMessages = new ArrayList<String>();
+            }
+
+            if (!messages.isEmpty()) {
+                SendPacketsImpl(PackMessages(messages), false);
             }
-            SendPacketsImpl(packets, true);
         }
 
-        // send a "normal" message
-        public void SendMessage(final String message, boolean shouldPrintStartFinish) {
-            List<Packet> packets = new ArrayList<Packet>();
-            Packet payload = new Packet(message, sendNextSeqNum++, sourcePort, destPort);
-            packets.add(payload);
-            SendPacketsImpl(packets, shouldPrintStartFinish);
+        // the data of as few packets as will carry the messages, each small enough for the receiver's buffer
+        // a message bigger than that goes ahead in MORE_ pieces, which MessageDelivery puts back together
+        private List<String> PackMessages(List<String> messages) {
+            List<String> packets = new ArrayList<String>();
+            StringBuilder data = new StringBuilder();
+
+            for (String message : messages) {
+                int start = 0;
+                while (message.length() - start > MAX_DATA_LENGTH) {
+                    if (data.length() > 0) {
+                        packets.add(data.toString());
+                        data.setLength(0);
+                    }
+
+                    // the receiver trims every datagram, so a piece can't end in a space
+                    int end = start + MAX_DATA_LENGTH - MessageCreator.Continued("").length();
+                    while (message.charAt(end - 1) == ' ') {
+                        end--;
+                    }
+                    packets.add(MessageCreator.Continued(message.substring(start, end)));
+                    start = end;
+                }
+                message = message.substring(start);
+
+                if (data.length() > 0 && data.length() + MessageCreator.MESSAGE_DELIM.length() + message.length() > MAX_DATA_LENGTH) {
+                    packets.add(data.toString());
+                    data.setLength(0);
+                }
+                if (data.length() > 0) {
+                    data.append(MessageCreator.MESSAGE_DELIM);
+                }
+                data.append(message);
+            }
+            packets.add(data.toString());
+
+            return packets;
         }
 
         // ensures that a set of packets is sent successfully
         // sends them once, then monitors for timeouts until
-        // all packets are ACKed
-        private void SendPacketsImpl(List<Packet> packets, boolean shouldPrintStartFinish) {
+        // all packets are ACKed, or until the neighbor goes down, then returns false
+        // packets only get their numbers in StartSending, under udpLock, in the order they go out
+        private boolean SendPacketsImpl(List<String> packets, boolean shouldPrintStartFinish) {
+
+            // nothing gets ACKed by a neighbor that's down
+            if (closed || !neighbors.get(destPort).Alive) {
+                return false;
+            }
 
             // if we're printing, print finish
             if (shouldPrintStartFinish) {
@@ -845,18 +2223,7 @@ public class SDNode {
             // lock here so that we only handle on "send" command at a time
             synchronized (udpLock) {
 
-                // send or queue all of the packets
-                for (Packet payload : packets) {
-                    sendPackets.put(payload.Number, payload);
-
-                    // if the window is full, save it for later
-                    if (payload.Number >= sendWindowBase + windowSize) {
-                        queuedPackets.add(payload.Number);
-                    }
-                    else {
-                        SendOnePacket(payload);
-                    }
-                }
+                StartSending(packets);
 
                 // wait for all packets to be ACKed and check for timeouts
                 while (true) {
@@ -869,24 +2236,16 @@ public class SDNode {
                     }
 
                     // if nothing is in flight, we're done!
-                    if (inFlightPacketTimes.isEmpty()) {
+                    if (NothingInFlight()) {
                         break;
                     }
 
-                    for (Integer packetNum : new ArrayList<Integer>(inFlightPacketTimes.keySet())) {
-
-                        // if the packet has been ACKed, no longer in flight
-                        if (ackedPackets.contains(packetNum)) {
-                            inFlightPacketTimes.remove(packetNum);
-                            continue;
-                        }
-
-                        // check for timeout
-                        if (inFlightPacketTimes.get(packetNum) + timeoutMs < Calendar.getInstance().getTimeInMillis()) {
-                            // note that SDNode does not print anything when timeouts happen
-                            SendOnePacket(sendPackets.get(packetNum));
-                        }
+                    // the neighbor went down while we waited
+                    if (closed) {
+                        return false;
                     }
+
+                    ResendTimedOut();
                 }
 
                 // at this point, all packets have been ACKed
@@ -895,6 +2254,46 @@ public class SDNode {
                     SdPrinting.PrintFinishSending(sourcePort);
                 }
             }
+            return true;
+        }
+
+        // number the packets, then send or queue them, only with udpLock held
+        // an ACK that moves the window in between would never send a packet queued after it looked
+        private synchronized void StartSending(List<String> packets) {
+            for (String data : packets) {
+                Packet payload = new Packet(data, sendNextSeqNum++, sourcePort, destPort);
+                sendPackets.put(payload.Number, payload);
+
+                // if the window is full, save it for later
+                if (payload.Number >= sendWindowBase + windowSize) {
+                    queuedPackets.add(payload.Number);
+                }
+                else {
+                    SendOnePacket(payload);
+                }
+            }
+        }
+
+        private synchronized boolean NothingInFlight() {
+            return inFlightPacketTimes.isEmpty();
+        }
+
+        // forget the packets that have been ACKed, and send the ones that timed out again
+        private synchronized void ResendTimedOut() {
+            for (Integer packetNum : new ArrayList<Integer>(inFlightPacketTimes.keySet())) {
+
+                // if the packet has been ACKed, no longer in flight
+                if (ackedPackets.contains(packetNum)) {
+                    inFlightPacketTimes.remove(packetNum);
+                    continue;
+                }
+
+                // check for timeout
+                if (inFlightPacketTimes.get(packetNum) + timeoutMs < Calendar.getInstance().getTimeInMillis()) {
+                    // note that SDNode does not print anything when timeouts happen
+                    SendOnePacket(sendPackets.get(packetNum));
+                }
+            }
         }
 
         // send a packet unreliably and update it's timestamp
@@ -917,21 +2316,23 @@ public class SDNode {
             }
         }
 
-        // thread for delivering messages to upper layer
+        // a batch of in-order packets for the upper layer
         // the basic idea is that we want to continue to receive ACKs
         // even when Selective Repeat determines it has a set of
-        // in-order packets to deliver. this is not long-living, so
-        // we have at most 3 threads open at once (one listening for user,
-        // one listening for udp, and this one which processes messages)
+        // in-order packets to deliver, so the MessageDeliverer thread
+        // runs these instead of the udp thread
         private class MessageDelivery implements Runnable {
 
             private int numReceived;
+            private int numDropped;
             private List<Packet> toDeliver;
 
             public MessageDelivery(List<Packet> toDeliver) {
                 this.toDeliver = toDeliver;
                 this.numReceived = numReceivedSinceLastDeliver;
+                this.numDropped = numDroppedSinceLastDeliver;
                 numReceivedSinceLastDeliver = 0;
+                numDroppedSinceLastDeliver = 0;
             }
 
             @Override
@@ -939,14 +2340,48 @@ public class SDNode {
                 // lock because we cannot deliver a message if we're still sending
                 synchronized (udpLock) {
                     for (Packet p : toDeliver) {
-                        MessageDeliveryFromSR(p.SourcePort, p.Data, numReceived);
-                        numReceived = 0;
+                        // hold on to the pieces of a big message until the last one
+                        String data = p.Data;
+                        if (data.startsWith(MessageCreator.Continued(""))) {
+                            partialMessage.append(data, MessageCreator.Continued("").length(), data.length());
+                            continue;
+                        }
+                        if (partialMessage.length() > 0) {
+                            data = partialMessage.append(data).toString();
+                            partialMessage.setLength(0);
+                        }
+
+                        // a packet can carry several messages if the neighbor coalesces them
+                        for (String message : data.split(MessageCreator.MESSAGE_DELIM)) {
+                            MessageDeliveryFromSR(p.SourcePort, message, numReceived, numDropped);
+                            numReceived = 0;
+                            numDropped = 0;
+                        }
                     }
                 }
             }
         }
     }
 
+    // thread for delivering messages to upper layer
+    // one for the whole node, so batches are delivered in the order SR produced them,
+    // and we have at most 3 threads open at once (one listening for user,
+    // one listening for udp, and this one which processes messages)
+    private class MessageDeliverer implements Runnable {
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    deliveries.take().run();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
     // defines the packet contents of each type of message
     private static class MessageCreator {
 
@@ -956,6 +2391,21 @@ public class SDNode {
         public static final String BROADCAST_PREFIX = "DV";
         public static final String SEND_PREFIX = "SEND";
         public static final String END_OF_SEND_PREFIX = "END";
+        public static final String LSA_PREFIX = "LSA";
+
+        // a keepalive, a datagram of its own that never goes through SR
+        public static final String HELLO = "HELLO";
+
+        // between messages coalesced into one packet, never part of a message itself
+        public static final String MESSAGE_DELIM = ";";
+
+        // a piece of a message too big for one packet, the rest follows in the next packet
+        public static final String CONTINUED_PREFIX = "MORE";
+
+        public static String Continued(String piece) {
+            // MORE_<piece>
+            return CONTINUED_PREFIX + PREFIX_DELIM + piece;
+        }
 
         public static String EndOfSend(int originalSourcePort) {
             // I am defining the end-of-send message as follows:
@@ -976,6 +2426,14 @@ public class SDNode {
             return SEND_PREFIX + PREFIX_DELIM + sourcePort + "," + finalDestPort + "," + numPackets;
         }
 
+        public static String Send(int sourcePort, int finalDestPort, int numPackets, int totalPackets, String batch) {
+            // with ECMP a send gets split into batches on the way, defined as follows:
+            // SEND_<source-node>,<dest-node>,<num_packets>,<total_packets>,<batch-id>
+            // where the batch id is the one it was split from (or 0) with "-<share>" added
+
+            return SEND_PREFIX + PREFIX_DELIM + sourcePort + "," + finalDestPort + "," + numPackets + "," + totalPackets + "," + batch;
+        }
+
         public static String Send(String receivedMessage) {
             // this happens when forwarding a message to the final destination
             return SEND_PREFIX + PREFIX_DELIM + receivedMessage;
@@ -988,25 +2446,38 @@ public class SDNode {
             return CHANGE_PREFIX + PREFIX_DELIM + newLossRate;
         }
 
-        public static String Broadcast(int neighborPort, HashMap<Integer, RoutingTableEntry> routingTable) {
+        public static String Broadcast(int neighborId, RouteTable routingTable, NodeIds ids) {
             // I am defining the broadcast message as follows:
             // DV_<reachable-node1>,<next-node1>,<weight1> <reachable-node2>,<next-node2>,<weight2> ...
 
-            String message = BROADCAST_PREFIX + PREFIX_DELIM;
-            for (RoutingTableEntry entry : routingTable.values()) {
+            StringBuilder message = new StringBuilder(BROADCAST_PREFIX + PREFIX_DELIM);
+            for (int toId = 0; toId < routingTable.Length(); toId++) {
                 // only tell neighbor we can get to places that don't go through them
-                if (entry.NeighborPort != neighborPort && entry.ToPort != neighborPort){
-                    message += entry.ToPort + "," + entry.NeighborPort + "," + entry.Weight + " ";
+                int nextHop = routingTable.NextHop(toId);
+                if (nextHop != RouteTable.NONE && nextHop != neighborId && toId != neighborId){
+                    message.append(ids.Port(toId)).append(',').append(ids.Port(nextHop)).append(',').append(RouteTable.FromMilli(routingTable.Weight(toId))).append(' ');
                 }
             }
 
             // if we have nothing to send to this neighbor, don't send
-            if (!message.endsWith(" ")) {
+            if (message.charAt(message.length() - 1) != ' ') {
                 return null;
             }
             else {
-                return message.trim();
+                return message.toString().trim();
+            }
+        }
+
+        public static String Lsa(Lsa lsa) {
+            // I am defining the link state message as follows:
+            // LSA_<origin-node>,<sequence> <neighbor1>,<weight1> <neighbor2>,<weight2> ...
+
+            StringBuilder message = new StringBuilder(LSA_PREFIX + PREFIX_DELIM);
+            message.append(lsa.Origin).append(',').append(lsa.Sequence);
+            for (Map.Entry<Integer, Long> link : lsa.Links.entrySet()) {
+                message.append(' ').append(link.getKey()).append(',').append(RouteTable.FromMilli(link.getValue()));
             }
+            return message.toString();
         }
 
     }
@@ -1032,6 +2503,15 @@ public class SDNode {
             System.out.println(toPrint);
         }
 
+        // how many of the data datagrams of one send the loss model dropped, the same ones counted in PrintFinishReceiving
+        public static void PrintLossStats(int nodePort, int numDropped, int numReceived) {
+            long timestamp = Calendar.getInstance().getTimeInMillis();
+            double lossRate = numReceived == 0 ? 0 : (double)numDropped / numReceived;
+            lossRate = (double)Math.round(lossRate * 1000)/1000; // round to 3 decimal places
+            String toPrint = "[" + timestamp + "] " + nodePort + " loss model dropped " + numDropped + " of " + numReceived + " data datagrams of this send (" + lossRate + ")";
+            System.out.println(toPrint);
+        }
+
         public static void PrintTimeCost(int originalSourcePort, int nextPort, int finalDestPort, long timeCost) {
             String toPrint = originalSourcePort + " - " + nextPort + " -> " + finalDestPort + ": " + timeCost;
             System.out.println(toPrint);
@@ -1054,20 +2534,43 @@ public class SDNode {
             System.out.println(toPrint);
         }
 
-        public static void PrintRoutingTable(int nodePort, HashMap<Integer, RoutingTableEntry> routingTable) {
+        public static void PrintRoutingTable(int nodePort, RouteTable routingTable, NodeIds ids) {
             long timestamp = Calendar.getInstance().getTimeInMillis();
-            String toPrint = "[" + timestamp + "] Node " + nodePort + " - Routing Table";
-            for (RoutingTableEntry entry : routingTable.values()) {
-                if (entry.ToPort == entry.NeighborPort) {
-                    toPrint += "\nNode " + entry.ToPort + " -> (" + entry.Weight + ")";
+            StringBuilder toPrint = new StringBuilder("[" + timestamp + "] Node " + nodePort + " - Routing Table");
+            for (int toId = 0; toId < routingTable.Length(); toId++) {
+                if (!routingTable.Has(toId)) {
+                    continue;
+                }
+                double weight = RouteTable.FromMilli(routingTable.Weight(toId));
+                int[] paths = routingTable.Paths(toId);
+                if (paths != null) {
+                    // with ECMP, every next hop, the best one first
+                    toPrint.append("\nNode ").append(ids.Port(toId)).append(" [next");
+                    for (int i = 0; i < paths.length; i++) {
+                        toPrint.append(i == 0 ? " " : ", ").append(ids.Port(paths[i]));
+                    }
+                    toPrint.append("] -> (").append(weight).append(")");
+                }
+                else if (toId == routingTable.NextHop(toId)) {
+                    toPrint.append("\nNode ").append(ids.Port(toId)).append(" -> (").append(weight).append(")");
                 }
                 else {
-                    toPrint += "\nNode " + entry.ToPort + " [next " + entry.NeighborPort + "] -> (" + entry.Weight + ")";
+                    toPrint.append("\nNode ").append(ids.Port(toId)).append(" [next ").append(ids.Port(routingTable.NextHop(toId))).append("] -> (").append(weight).append(")");
                 }
             }
             System.out.println(toPrint);
         }
 
+        public static void PrintNeighborDown(int nodePort, int neighborPort) {
+            long timestamp = Calendar.getInstance().getTimeInMillis();
+            System.out.println("[" + timestamp + "] Node " + nodePort + " - Neighbor " + neighborPort + " is down");
+        }
+
+        public static void PrintNeighborUp(int nodePort, int neighborPort) {
+            long timestamp = Calendar.getInstance().getTimeInMillis();
+            System.out.println("[" + timestamp + "] Node " + nodePort + " - Neighbor " + neighborPort + " is up again");
+        }
+
     }
 
 }